@@ -0,0 +1,561 @@
+/***
+ * Name of File: BatchJob
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * BatchJob runs GeneralClassifier without any prompts: it can train (or load) a forest, save it, score a test file
+ * and evaluate it in one invocation (optionally folding a window of new rows into it first, see
+ * RandomForest.update()), then writes accuracy, OOB error and per-phase timings as JSON.
+ * Options come from the command line and/or a properties file (-config) whose keys are the option names
+ * without the dash; command line options win.
+ *
+ * Example: java GeneralClassifier -train bonesTrain.txt -test bonesTest.txt -trees 300 -seed 1 -metrics run.json
+ */
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class BatchJob {
+
+    static final String USAGE =
+        "usage: java GeneralClassifier [-config file] (-train file | -load model) [-update file [-replace n]]\n" +
+        "         [-test file] [-save model]\n" +
+        "         [-trees n] [-features n] [-depth n] [-minSplit n] [-seed n] [-threads n] [-workers host:port,...]\n" +
+        "         [-levelWise true|false] [-criterion entropy|gini] [-parallelSplit rows] [-oobWindow n]\n" +
+        "         [-oobTolerance x] [-predictions file] [-metrics file]";
+
+    static final List<String> OPTIONS = Arrays.asList("config", "train", "test", "load", "save", "trees", "features", "depth",
+        "minSplit", "seed", "threads", "oobWindow", "oobTolerance", "predictions", "metrics", "update", "replace",
+        "levelWise", "workers", "parallelSplit", "criterion");
+
+    // options that only change how a forest is trained, so they cannot be given with -load
+    static final List<String> TRAINING_OPTIONS = Arrays.asList("trees", "features", "depth", "minSplit", "seed", "threads",
+        "oobWindow", "oobTolerance", "levelWise", "workers", "parallelSplit", "criterion");
+
+    // Thrown for a bad command line or option value (exit code 2 and the usage); any other failure is exit code 1
+    static class UsageException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        UsageException(String message) {
+            super(message);
+        }
+    }
+
+    // Runs the job described by args, returns the process exit code (0 ok, 1 failed, 2 bad arguments)
+    public static int run(String[] args) {
+        Properties options;
+        try {
+            options = parseOptions(args);
+        }
+        catch (UsageException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            return 1;
+        }
+
+        try {
+            Map<String, Object> metrics = run(options);
+            String json = toJson(metrics);
+            String metricsFile = options.getProperty("metrics");
+            if (metricsFile != null)
+                Files.write(Paths.get(metricsFile), (json + "\n").getBytes(StandardCharsets.UTF_8));
+            else
+                System.out.println(json);
+            return 0;
+        }
+        catch (UsageException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        catch (IOException | RuntimeException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    // Reads the options from the command line, after loading the -config file if one is given
+    static Properties parseOptions(String[] args) throws IOException {
+        Properties commandLine = new Properties();
+        for (int i=0; i<args.length; i++){
+            if (!args[i].startsWith("-") || !OPTIONS.contains(args[i].substring(1)))
+                throw new UsageException("unknown option " + args[i]);
+            if (i + 1 >= args.length)
+                throw new UsageException("missing value for " + args[i]);
+            commandLine.setProperty(args[i].substring(1), args[++i]);
+        }
+
+        Properties options = new Properties();
+        String config = commandLine.getProperty("config");
+        if (config != null){
+            try (Reader in = Files.newBufferedReader(Paths.get(config))){
+                options.load(in);
+            }
+            for (String key : options.stringPropertyNames()){
+                if (!OPTIONS.contains(key))
+                    throw new UsageException(config + ": unknown option " + key);
+            }
+        }
+        options.putAll(commandLine);
+
+        if (options.getProperty("train") == null && options.getProperty("load") == null)
+            throw new UsageException("one of -train or -load is required");
+        if (options.getProperty("train") != null && options.getProperty("load") != null)
+            throw new UsageException("-train and -load cannot be used together");
+        if (options.getProperty("load") != null){
+            for (String option : TRAINING_OPTIONS){
+                if (options.getProperty(option) != null)
+                    throw new UsageException("-" + option + " only applies when training with -train, not with -load");
+            }
+        }
+        requires(options, "replace", "update");
+        requires(options, "predictions", "test");
+        requires(options, "oobTolerance", "oobWindow");
+        if (options.getProperty("threads") != null && options.getProperty("workers") != null)
+            throw new UsageException("-threads does not apply with -workers, each worker sets its own threads");
+        return options;
+    }
+
+    // Throws a UsageException when option is given without the option it applies to
+    static void requires(Properties options, String option, String needed) {
+        if (options.getProperty(option) != null && options.getProperty(needed) == null)
+            throw new UsageException("-" + option + " only applies with -" + needed);
+    }
+
+    // Trains or loads, saves, scores and evaluates as the options say and returns the metrics
+    static Map<String, Object> run(Properties options) throws IOException {
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        Map<String, Object> timings = new LinkedHashMap<String, Object>();
+        ForestMetrics forestMetrics = ForestMetrics.register("BatchJob"); // per-tree, loading and scoring detail, also over JMX
+        RandomForest forest;
+
+        if (options.getProperty("load") != null){
+            long start = System.nanoTime();
+            forest = RandomForest.load(options.getProperty("load"));
+            forest.addListener(forestMetrics);
+            timings.put("loadModelMs", millisSince(start));
+            metrics.put("model", options.getProperty("load"));
+        }
+        else{
+            long start = System.nanoTime();
+            BitDataset train = DatasetReader.read(options.getProperty("train"));
+            forestMetrics.dataLoaded(options.getProperty("train"), train.getNumRows(), System.nanoTime() - start);
+            timings.put("loadTrainMs", millisSince(start));
+
+            int numFeatures = train.getNumFeatures();
+            int trees = intOption(options, "trees", 100, 1);
+            int features = intOption(options, "features", Math.max(1, (int) Math.sqrt(numFeatures)), 1);
+            int depth = intOption(options, "depth", 10, 0);
+            int minSplit = intOption(options, "minSplit", 2, 0);
+            int threads = intOption(options, "threads", Runtime.getRuntime().availableProcessors(), 1);
+
+            forest = new RandomForest(train, trees, features, depth, minSplit);
+            forest.addListener(forestMetrics);
+            if (options.getProperty("seed") != null)
+                forest.setSeed(longOption(options, "seed"));
+            boolean levelWise = booleanOption(options, "levelWise", false);
+            forest.setLevelWise(levelWise);
+            DecisionTree.SplitCriterion criterion = criterionOption(options);
+            forest.setCriterion(criterion);
+            int parallelSplit = intOption(options, "parallelSplit", 0, 0);
+            forest.setParallelSplit(parallelSplit);
+            int oobWindow = intOption(options, "oobWindow", 0, 0);
+            if (oobWindow > 0)
+                forest.setOobEarlyStop(oobWindow, doubleOption(options, "oobTolerance", 0.001));
+
+            Map<String, Object> params = new LinkedHashMap<String, Object>();
+            params.put("trees", trees);
+            params.put("features", features);
+            params.put("depth", depth);
+            params.put("minSplit", minSplit);
+            params.put("threads", threads);
+            params.put("levelWise", levelWise);
+            params.put("criterion", criterion.name().toLowerCase());
+            params.put("parallelSplit", parallelSplit);
+            if (options.getProperty("seed") != null)
+                params.put("seed", longOption(options, "seed"));
+            metrics.put("train", options.getProperty("train"));
+            metrics.put("trainRows", train.getNumRows());
+            metrics.put("params", params);
+
+            start = System.nanoTime();
+            if (options.getProperty("workers") != null){ // trees are trained by ForestWorker processes
+                List<InetSocketAddress> workers = workerOption(options);
+                params.put("workers", workers.size());
+                forest.trainForest(workers, options.getProperty("train"));
+            }
+            else{
+                forest.trainForest(threads);
+            }
+            double trainMs = millisSince(start);
+            timings.put("trainMs", trainMs);
+            timings.put("trainTreesPerSec", forest.getNumTrees() / trainMs * 1000);
+        }
+
+        if (options.getProperty("update") != null){
+            long start = System.nanoTime();
+            BitDataset window = DatasetReader.read(options.getProperty("update"), forest.getBins());
+            forestMetrics.dataLoaded(options.getProperty("update"), window.getNumRows(), System.nanoTime() - start);
+            timings.put("loadUpdateMs", millisSince(start));
+            if (window.getNumFeatures() != forest.getNumFeatures())
+                throw new IllegalStateException(options.getProperty("update") + " has " + window.getNumFeatures() + " features but the forest expects " + forest.getNumFeatures());
+            int replace = intOption(options, "replace", Math.max(1, forest.getNumTrees() / 10), 0);
+            if (replace > forest.getNumTrees())
+                throw new UsageException("-replace cannot be more than the " + forest.getNumTrees() + " trees of the forest");
+
+            start = System.nanoTime();
+            double errorBefore = forest.update(window, replace);
+            timings.put("updateMs", millisSince(start));
+            Map<String, Object> update = new LinkedHashMap<String, Object>();
+            update.put("file", options.getProperty("update"));
+            update.put("rows", window.getNumRows());
+            update.put("replacedTrees", replace);
+            update.put("errorBefore", errorBefore);
+            metrics.put("update", update);
+        }
+        metrics.put("trees", forest.getNumTrees());
+        metrics.put("oobError", forest.calcForestOobError());
+        metrics.put("meanTreeOobError", forest.calcMeanOobScore());
+
+        if (options.getProperty("save") != null){
+            long start = System.nanoTime();
+            forest.save(options.getProperty("save"));
+            timings.put("saveMs", millisSince(start));
+        }
+
+        if (options.getProperty("test") != null){
+            long start = System.nanoTime();
+            BitDataset test = DatasetReader.read(options.getProperty("test"), forest.getBins());
+            forestMetrics.dataLoaded(options.getProperty("test"), test.getNumRows(), System.nanoTime() - start);
+            timings.put("loadTestMs", millisSince(start));
+            if (test.getNumFeatures() != forest.getNumFeatures())
+                throw new IllegalStateException(options.getProperty("test") + " has " + test.getNumFeatures() + " features but the forest expects " + forest.getNumFeatures());
+
+            start = System.nanoTime();
+            long[] predictions = forest.evaluateBatch(test);
+            double scoreMs = millisSince(start);
+            timings.put("scoreMs", scoreMs);
+            timings.put("scoreRowsPerSec", test.getNumRows() / scoreMs * 1000);
+
+            int[] correct = GeneralClassifier.countCorrect(predictions, test);
+            int numPos = test.countPositive();
+            int numNeg = test.getNumRows() - numPos;
+            Map<String, Object> evaluation = new LinkedHashMap<String, Object>();
+            evaluation.put("file", options.getProperty("test"));
+            evaluation.put("rows", test.getNumRows());
+            evaluation.put("positiveCorrect", correct[0]);
+            evaluation.put("positiveTotal", numPos);
+            evaluation.put("positiveAccuracy", correct[0] / (double) numPos);
+            evaluation.put("negativeCorrect", correct[1]);
+            evaluation.put("negativeTotal", numNeg);
+            evaluation.put("negativeAccuracy", correct[1] / (double) numNeg);
+            evaluation.put("accuracy", (correct[0] + correct[1]) / (double) test.getNumRows());
+            metrics.put("test", evaluation);
+
+            if (options.getProperty("predictions") != null){
+                start = System.nanoTime();
+                writePredictions(predictions, test.getNumRows(), options.getProperty("predictions"));
+                timings.put("writePredictionsMs", millisSince(start));
+            }
+        }
+
+        metrics.put("timings", timings);
+        metrics.put("instrumentation", forestMetrics.toMap());
+        return metrics;
+    }
+
+    // Writes one line per row: positive or negative
+    static void writePredictions(long[] predictions, int numRows, String file) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(Paths.get(file))){
+            for (int row=0; row<numRows; row++){
+                out.write((predictions[row >>> 6] & (1L << row)) != 0 ? "positive" : "negative");
+                out.newLine();
+            }
+        }
+    }
+
+    static double millisSince(long start) {
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    // Same as intOption(options, name, defaultValue), the value must be at least min
+    static int intOption(Properties options, String name, int defaultValue, int min) {
+        int value = intOption(options, name, defaultValue);
+        if (value < min)
+            throw new UsageException("-" + name + " must be at least " + min + ", not " + value);
+        return value;
+    }
+
+    static int intOption(Properties options, String name, int defaultValue) {
+        String value = options.getProperty(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new UsageException("-" + name + " must be an integer, not " + value);
+        }
+    }
+
+    static boolean booleanOption(Properties options, String name, boolean defaultValue) {
+        String value = options.getProperty(name);
+        if (value == null)
+            return defaultValue;
+        if (value.trim().equalsIgnoreCase("true"))
+            return true;
+        if (value.trim().equalsIgnoreCase("false"))
+            return false;
+        throw new UsageException("-" + name + " must be true or false, not " + value);
+    }
+
+    static DecisionTree.SplitCriterion criterionOption(Properties options) {
+        String value = options.getProperty("criterion", "entropy");
+        try {
+            return DecisionTree.SplitCriterion.valueOf(value.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            throw new UsageException("-criterion must be entropy or gini, not " + value);
+        }
+    }
+
+    static long longOption(Properties options, String name) {
+        String value = options.getProperty(name);
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new UsageException("-" + name + " must be an integer, not " + value);
+        }
+    }
+
+    // Reads -workers host:port,host:port,...
+    static List<InetSocketAddress> workerOption(Properties options) {
+        List<InetSocketAddress> workers = new ArrayList<InetSocketAddress>();
+        for (String worker : options.getProperty("workers").split(",")){
+            int colon = worker.lastIndexOf(':');
+            try {
+                if (colon < 0)
+                    throw new NumberFormatException();
+                workers.add(new InetSocketAddress(worker.substring(0, colon).trim(), Integer.parseInt(worker.substring(colon + 1).trim())));
+            }
+            catch (NumberFormatException e) {
+                throw new UsageException("-workers must be a list of host:port, not " + worker);
+            }
+        }
+        return workers;
+    }
+
+    static double doubleOption(Properties options, String name, double defaultValue) {
+        String value = options.getProperty(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Double.parseDouble(value.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new UsageException("-" + name + " must be a number, not " + value);
+        }
+    }
+
+    // Writes maps, lists, strings, numbers and booleans as JSON (NaN and infinities become null)
+    static String toJson(Object value) {
+        StringBuilder json = new StringBuilder();
+        appendJson(json, value);
+        return json.toString();
+    }
+
+    private static void appendJson(StringBuilder json, Object value) {
+        if (value instanceof Map){
+            json.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()){
+                if (!first)
+                    json.append(',');
+                first = false;
+                appendString(json, entry.getKey().toString());
+                json.append(':');
+                appendJson(json, entry.getValue());
+            }
+            json.append('}');
+        }
+        else if (value instanceof List){
+            json.append('[');
+            boolean first = true;
+            for (Object item : (List<?>) value){
+                if (!first)
+                    json.append(',');
+                first = false;
+                appendJson(json, item);
+            }
+            json.append(']');
+        }
+        else if (value instanceof Double || value instanceof Float){
+            double d = ((Number) value).doubleValue();
+            json.append(Double.isNaN(d) || Double.isInfinite(d) ? "null" : Double.toString(d));
+        }
+        else if (value instanceof Number || value instanceof Boolean){
+            json.append(value);
+        }
+        else if (value == null){
+            json.append("null");
+        }
+        else{
+            appendString(json, value.toString());
+        }
+    }
+
+    // Reads JSON text into maps (LinkedHashMap), lists (ArrayList), strings, doubles, booleans and nulls
+    static Object parseJson(String text) {
+        int[] pos = {0};
+        Object value = parseValue(text, pos);
+        skipSpace(text, pos);
+        if (pos[0] != text.length())
+            throw new IllegalArgumentException("unexpected text after JSON value at offset " + pos[0]);
+        return value;
+    }
+
+    // Parses the value starting at pos[0] and moves pos[0] past it
+    private static Object parseValue(String text, int[] pos) {
+        skipSpace(text, pos);
+        if (pos[0] >= text.length())
+            throw new IllegalArgumentException("unexpected end of JSON");
+        char c = text.charAt(pos[0]);
+        if (c == '{'){
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            pos[0]++;
+            skipSpace(text, pos);
+            if (peek(text, pos) == '}'){
+                pos[0]++;
+                return map;
+            }
+            while (true){
+                skipSpace(text, pos);
+                if (peek(text, pos) != '"')
+                    throw new IllegalArgumentException("expected a string key at offset " + pos[0]);
+                String key = parseString(text, pos);
+                skipSpace(text, pos);
+                expect(text, pos, ':');
+                map.put(key, parseValue(text, pos));
+                skipSpace(text, pos);
+                if (peek(text, pos) == ','){
+                    pos[0]++;
+                    continue;
+                }
+                expect(text, pos, '}');
+                return map;
+            }
+        }
+        if (c == '['){
+            List<Object> list = new ArrayList<Object>();
+            pos[0]++;
+            skipSpace(text, pos);
+            if (peek(text, pos) == ']'){
+                pos[0]++;
+                return list;
+            }
+            while (true){
+                list.add(parseValue(text, pos));
+                skipSpace(text, pos);
+                if (peek(text, pos) == ','){
+                    pos[0]++;
+                    continue;
+                }
+                expect(text, pos, ']');
+                return list;
+            }
+        }
+        if (c == '"')
+            return parseString(text, pos);
+        if (text.startsWith("true", pos[0])){
+            pos[0] += 4;
+            return Boolean.TRUE;
+        }
+        if (text.startsWith("false", pos[0])){
+            pos[0] += 5;
+            return Boolean.FALSE;
+        }
+        if (text.startsWith("null", pos[0])){
+            pos[0] += 4;
+            return null;
+        }
+        int start = pos[0];
+        while (pos[0] < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos[0])) >= 0)
+            pos[0]++;
+        try {
+            return Double.parseDouble(text.substring(start, pos[0]));
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("unexpected character '" + c + "' at offset " + start);
+        }
+    }
+
+    // Parses the string starting at pos[0] (which is a quote) and moves pos[0] past its closing quote
+    private static String parseString(String text, int[] pos) {
+        StringBuilder s = new StringBuilder();
+        pos[0]++;
+        while (true){
+            if (pos[0] >= text.length())
+                throw new IllegalArgumentException("unterminated string");
+            char c = text.charAt(pos[0]++);
+            if (c == '"')
+                return s.toString();
+            if (c != '\\'){
+                s.append(c);
+                continue;
+            }
+            if (pos[0] >= text.length())
+                throw new IllegalArgumentException("unterminated string");
+            char e = text.charAt(pos[0]++);
+            switch (e){
+                case 'b': s.append('\b'); break;
+                case 'f': s.append('\f'); break;
+                case 'n': s.append('\n'); break;
+                case 'r': s.append('\r'); break;
+                case 't': s.append('\t'); break;
+                case 'u':
+                    if (pos[0] + 4 > text.length())
+                        throw new IllegalArgumentException("bad \\u escape");
+                    s.append((char) Integer.parseInt(text.substring(pos[0], pos[0] + 4), 16));
+                    pos[0] += 4;
+                    break;
+                default: s.append(e);
+            }
+        }
+    }
+
+    private static void skipSpace(String text, int[] pos) {
+        while (pos[0] < text.length() && Character.isWhitespace(text.charAt(pos[0])))
+            pos[0]++;
+    }
+
+    private static char peek(String text, int[] pos) {
+        return pos[0] < text.length() ? text.charAt(pos[0]) : 0;
+    }
+
+    private static void expect(String text, int[] pos, char c) {
+        if (peek(text, pos) != c)
+            throw new IllegalArgumentException("expected '" + c + "' at offset " + pos[0]);
+        pos[0]++;
+    }
+
+    private static void appendString(StringBuilder json, String s) {
+        json.append('"');
+        for (int i=0; i<s.length(); i++){
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,231 @@
+/***
+ * Name of File: Benchmarks
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * Benchmarks measures training, split scoring, loading and prediction on the bundled data files and on synthetic
+ * datasets of any size. Every benchmark is warmed up first, then timed over several iterations; the report gives the
+ * mean time per operation with its spread and the bytes allocated per operation (the thread allocation counters
+ * JMH's gc profiler reads, summed over the calling thread and the pool threads that do the work)
+ *
+ * Usage: java Benchmarks [name filter] [-rows N] [-warmup N] [-iterations N] [-threads N]
+ *   e.g. java Benchmarks train -rows 1000000
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+public class Benchmarks {
+
+    static final String[] DATASETS = {"bones", "credit", "heart", "wine"};
+
+    static int warmupIterations = 3;
+    static int measureIterations = 5;
+    static int syntheticRows = 1000000; // rows of the synthetic datasets
+    static int numThreads = Runtime.getRuntime().availableProcessors();
+    static String filter = "";
+    static ForkJoinPool pool; // trains the forests; kept for the whole run so its threads' allocations can be counted
+
+    // A piece of code to time; run() returns something so the JIT cannot drop the work
+    interface Operation {
+        Object run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int i=0; i<args.length; i++){
+            switch (args[i]){
+                case "-rows": syntheticRows = Integer.parseInt(args[++i]); break;
+                case "-warmup": warmupIterations = Integer.parseInt(args[++i]); break;
+                case "-iterations": measureIterations = Integer.parseInt(args[++i]); break;
+                case "-threads": numThreads = Integer.parseInt(args[++i]); break;
+                default: filter = args[i];
+            }
+        }
+
+        pool = new ForkJoinPool(numThreads);
+        try {
+            runAll();
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    static void runAll() throws Exception {
+        System.out.printf("%-48s %5s %14s %12s %16s%n", "Benchmark", "Cnt", "Score (ms/op)", "Error", "Alloc (B/op)");
+
+        for (String name : DATASETS){
+            String trainFile = name + "Train.txt";
+            String testFile = name + "Test.txt";
+            BitDataset train = DatasetReader.read(trainFile);
+            BitDataset test = DatasetReader.read(testFile);
+            runDatasetBenchmarks(name, train, test);
+            run("load.text." + name, () -> DatasetReader.read(trainFile));
+        }
+
+        BitDataset synthetic = synthetic(syntheticRows, 30, 1);
+        BitDataset syntheticTest = synthetic(Math.max(1, syntheticRows / 10), 30, 2);
+        runDatasetBenchmarks("synthetic" + syntheticRows, synthetic, syntheticTest);
+
+        String loadName = "load.synthetic" + syntheticRows;
+        if (matches(loadName + ".text") || matches(loadName + ".binary")){
+            Path text = Files.createTempFile("synthetic", ".txt");
+            Path binary = Files.createTempFile("synthetic", ".bin");
+            try {
+                writeText(synthetic, text);
+                BinaryDataset.write(synthetic, binary.toString());
+                run(loadName + ".text", () -> DatasetReader.read(text.toString()));
+                run(loadName + ".binary", () -> BinaryDataset.map(binary.toString()));
+            }
+            finally {
+                Files.deleteIfExists(text);
+                Files.deleteIfExists(binary);
+            }
+        }
+    }
+
+    // Training, split scoring and prediction benchmarks on one dataset
+    static void runDatasetBenchmarks(String name, BitDataset train, BitDataset test) throws Exception {
+        int numFeatures = train.getNumFeatures();
+        int featChoose = Math.max(1, (int) Math.sqrt(numFeatures));
+
+        // a depth 0 tree scores every feature at the root once and stops, which isolates split scoring
+        run("splitScoring." + name, () -> {
+            DecisionTree tree = new DecisionTree(numFeatures, numFeatures, 0, 2, new Random(1));
+            tree.train(train);
+            return tree;
+        });
+        run("treeTrain." + name, () -> {
+            DecisionTree tree = new DecisionTree(numFeatures, featChoose, 10, 2, new Random(1));
+            tree.train(train);
+            return tree;
+        });
+        run("treeTrainLevelWise." + name, () -> {
+            DecisionTree tree = new DecisionTree(numFeatures, featChoose, 10, 2, new Random(1));
+            tree.setLevelWise(true);
+            tree.train(train);
+            return tree;
+        });
+        run("treeTrainParallelSplit." + name, () -> {
+            DecisionTree tree = new DecisionTree(numFeatures, featChoose, 10, 2, new Random(1));
+            tree.setParallelSplit(1 << 16);
+            tree.train(train);
+            return tree;
+        });
+        run("forestTrain." + name, () -> {
+            RandomForest forest = new RandomForest(train, 100, featChoose, 10, 2);
+            forest.setSeed(1);
+            forest.trainForest(pool);
+            return forest;
+        });
+
+        RandomForest forest = new RandomForest(train, 100, featChoose, 10, 2);
+        forest.setSeed(1);
+        forest.trainForest(pool);
+        Example[] examples = new Example[Math.min(test.getNumRows(), 10000)];
+        for (int i=0; i<examples.length; i++)
+            examples[i] = test.toExample(i);
+
+        run("evaluateExample." + name + " (" + examples.length + " rows)", () -> {
+            int positive = 0;
+            for (Example e : examples){
+                if (forest.evaluateExample(e))
+                    positive++;
+            }
+            return positive;
+        });
+        run("evaluateRow.delta0.01." + name + " (" + test.getNumRows() + " rows)", () -> {
+            int positive = 0;
+            for (int row=0; row<test.getNumRows(); row++){
+                if (forest.evaluateRow(test, row, 0.01))
+                    positive++;
+            }
+            return positive;
+        });
+        run("evaluateBatch." + name + " (" + test.getNumRows() + " rows)", () -> forest.evaluateBatch(test));
+    }
+
+    // Warms up and times op, then prints one report line
+    static void run(String name, Operation op) throws Exception {
+        if (!matches(name))
+            return;
+
+        for (int i=0; i<warmupIterations; i++)
+            op.run();
+
+        double[] millis = new double[measureIterations];
+        long allocated = 0;
+        for (int i=0; i<measureIterations; i++){
+            Map<Long, Long> bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            op.run();
+            millis[i] = (System.nanoTime() - start) / 1e6;
+            for (Map.Entry<Long, Long> thread : allocatedBytes().entrySet())
+                allocated += thread.getValue() - bytesBefore.getOrDefault(thread.getKey(), 0L);
+        }
+
+        double mean = 0;
+        for (double m : millis)
+            mean += m;
+        mean /= millis.length;
+        double variance = 0;
+        for (double m : millis)
+            variance += (m - mean) * (m - mean);
+        double error = millis.length > 1 ? Math.sqrt(variance / (millis.length - 1)) : 0;
+
+        System.out.printf("%-48s %5d %14.3f %12.3f %16d%n", name, millis.length, mean, error, allocated / millis.length);
+    }
+
+    static boolean matches(String name) {
+        return name.contains(filter);
+    }
+
+    // Bytes allocated so far by every live thread, by thread id (empty when the JVM has no allocation counters)
+    // A thread that ends during an operation takes its count with it, which is why the pools outlive the benchmarks
+    static Map<Long, Long> allocatedBytes() {
+        HashMap<Long, Long> bytes = new HashMap<Long, Long>();
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean){
+            long[] ids = bean.getAllThreadIds();
+            long[] allocated = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(ids);
+            for (int i=0; i<ids.length; i++){
+                if (allocated[i] >= 0) // -1 for a thread that ended after getAllThreadIds()
+                    bytes.put(ids[i], allocated[i]);
+            }
+        }
+        return bytes;
+    }
+
+    // Builds a random dataset whose label depends on a few of its features plus 10% noise
+    static BitDataset synthetic(int rows, int features, long seed) {
+        Random rand = new Random(seed);
+        BitDataset data = new BitDataset(rows, features);
+        for (int row=0; row<rows; row++){
+            for (int f=0; f<features; f++){
+                if (rand.nextBoolean())
+                    data.setFeatureValue(row, f, true);
+            }
+            boolean label = (data.getFeatureValue(row, 0) && data.getFeatureValue(row, 1)) || data.getFeatureValue(row, 2) != data.getFeatureValue(row, 3);
+            if (rand.nextInt(10) == 0)
+                label = !label;
+            data.setLabel(row, label);
+        }
+        return data;
+    }
+
+    // Writes data as a tab separated text data file
+    static void writeText(BitDataset data, Path file) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file)){
+            out.write("label");
+            for (int f=0; f<data.getNumFeatures(); f++)
+                out.write("\t" + data.getFeatureName(f));
+            for (int row=0; row<data.getNumRows(); row++){
+                out.write(data.getLabel(row) ? "\npositive" : "\nnegative");
+                for (int f=0; f<data.getNumFeatures(); f++)
+                    out.write(data.getFeatureValue(row, f) ? "\tTRUE" : "\tFALSE");
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/***
+ * Name of File: BinaryDataset
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * BinaryDataset reads and writes BitDatasets in a compact binary file so that a data file only has to be parsed once.
+ * Layout (little endian): magic, version, number of rows, number of features, the feature names, the size of the
+ * bins followed by the bins (see FeatureBins.write(), size 0 when every feature is boolean), padding up to a multiple
+ * of 8 bytes, then the packed label column followed by every feature column: packed bits for a boolean feature, one
+ * byte code per row (padded to a multiple of 8 bytes) for a numeric or categorical one.
+ * Version 1 files (boolean features only, no bins) can still be read
+ *
+ * Run as a program to convert text data files:  java BinaryDataset bonesTrain.txt bonesTrain.bin
+ * (files with numeric or categorical cells are coded with bins fitted to each file; to convert data a trained forest
+ * will score, code it with the forest's bins:  java BinaryDataset -model bones.rf bonesTest.txt bonesTest.bin)
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+
+public class BinaryDataset {
+
+    static final int MAGIC = 0x44424652; // "RFBD" read as little endian bytes
+    static final int VERSION = 2; // version 2: numeric and categorical features stored as codes, with their bins
+
+    // Converts text data files given as pairs of arguments: input file, output file
+    public static void main(String[] args) throws IOException {
+        FeatureBins bins = null;
+        boolean useModel = args.length >= 2 && args[0].equals("-model");
+        int first = useModel ? 2 : 0;
+        if (args.length == first || (args.length - first) % 2 != 0){
+            System.out.println("usage: java BinaryDataset [-model forest file] <text file> <binary file> [<text file> <binary file> ...]");
+            return;
+        }
+        if (useModel)
+            bins = RandomForest.load(args[1]).getBins();
+        for (int i=first; i<args.length; i+=2){
+            BitDataset data = useModel ? DatasetReader.read(args[i], bins) : DatasetReader.read(args[i]);
+            write(data, args[i + 1]);
+            System.out.println(args[i] + " -> " + args[i + 1] + " (" + data.getNumRows() + " examples, " + data.getNumFeatures() + " features)");
+        }
+    }
+
+    // Writes data to file in the binary format
+    public static void write(BitDataset data, String file) throws IOException {
+        int numFeatures = data.getNumFeatures();
+        FeatureBins bins = data.hasCodedFeatures() ? data.getBins() : null;
+        byte[][] names = new byte[numFeatures][];
+        int headerSize = 16; // magic, version, rows, features
+        for (int f=0; f<numFeatures; f++){
+            names[f] = data.getFeatureName(f).getBytes(StandardCharsets.UTF_8);
+            headerSize += 4 + names[f].length;
+        }
+        headerSize += 4 + (bins != null ? bins.byteSize() : 0);
+        headerSize = (headerSize + 7) & ~7; // columns start on a multiple of 8 bytes
+
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(data.getNumRows()).putInt(numFeatures);
+        for (byte[] name : names)
+            header.putInt(name.length).put(name);
+        header.putInt(bins != null ? bins.byteSize() : 0);
+        if (bins != null)
+            bins.write(header);
+        header.rewind();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            writeFully(channel, header);
+            ByteBuffer column = ByteBuffer.allocate(data.getNumWords() * 8).order(ByteOrder.LITTLE_ENDIAN);
+            writeColumn(channel, column, data.getLabels());
+            for (int f=0; f<numFeatures; f++){
+                if (data.isCoded(f))
+                    writeFully(channel, ByteBuffer.wrap(Arrays.copyOf(data.getCodes(f), (int) codeColumnBytes(data.getNumRows()))));
+                else
+                    writeColumn(channel, column, data.getColumn(f));
+            }
+        }
+    }
+
+    // Bytes a code column of numRows rows takes in the file (a multiple of 8, so the columns after it stay aligned)
+    private static long codeColumnBytes(int numRows) {
+        return (numRows + 7L) & ~7L;
+    }
+
+    // Writes one packed column through the reusable buffer
+    private static void writeColumn(FileChannel channel, ByteBuffer buffer, long[] words) throws IOException {
+        buffer.clear();
+        buffer.asLongBuffer().put(words);
+        writeFully(channel, buffer);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    // Returns whether file starts with the binary dataset magic number
+    public static boolean isBinary(String file) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)){
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (magic.hasRemaining() && channel.read(magic) > 0);
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    // Memory-maps a binary dataset file and loads it without any parsing: every column is one bulk transfer
+    // from the mapped pages into the packed long[] columns the tree builder works on
+    public static BitDataset map(String file) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)){
+            long size = channel.size();
+            ByteBuffer head = read(channel, file, 0, 16);
+            if (head.getInt() != MAGIC)
+                throw new DatasetFormatException(file, 1, "not a binary dataset file");
+            int version = head.getInt();
+            if (version < 1 || version > VERSION)
+                throw new DatasetFormatException(file, 1, "unsupported binary dataset version " + version);
+            int numRows = head.getInt();
+            int numFeatures = head.getInt();
+            if (numRows < 0 || numFeatures < 0)
+                throw new DatasetFormatException(file, 1, "negative size in header: " + numRows + " rows and " + numFeatures + " features");
+            if (numFeatures > (size - 16) / 4) // every feature name takes at least its 4 byte length
+                throw new DatasetFormatException(file, 1, "file is shorter than its header says");
+
+            String[] names = new String[numFeatures];
+            long offset = 16;
+            for (int f=0; f<numFeatures; f++){
+                int length = read(channel, file, offset, 4).getInt();
+                if (length < 0 || offset + 4 + length > size)
+                    throw new DatasetFormatException(file, 1, "truncated header");
+                ByteBuffer name = read(channel, file, offset + 4, length);
+                names[f] = new String(name.array(), 0, length, StandardCharsets.UTF_8);
+                offset += 4 + length;
+            }
+            FeatureBins bins = null;
+            if (version >= 2){
+                int binsSize = read(channel, file, offset, 4).getInt();
+                if (binsSize < 0 || offset + 4 + binsSize > size)
+                    throw new DatasetFormatException(file, 1, "truncated header");
+                if (binsSize > 0){
+                    try {
+                        bins = FeatureBins.read(read(channel, file, offset + 4, binsSize));
+                    }
+                    catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+                        throw new DatasetFormatException(file, 1, "bad feature bins");
+                    }
+                    if (bins.getNumFeatures() != numFeatures)
+                        throw new DatasetFormatException(file, 1, "the bins are for " + bins.getNumFeatures() + " features, not " + numFeatures);
+                }
+                offset += 4 + binsSize;
+            }
+            offset = (offset + 7) & ~7L;
+
+            long columnBytes = BitDataset.wordsFor(numRows) * 8L;
+            long end = offset + columnBytes;
+            for (int f=0; f<numFeatures; f++)
+                end += bins != null && bins.isCoded(f) ? codeColumnBytes(numRows) : columnBytes;
+            if (end > size) // checked before the columns are allocated
+                throw new DatasetFormatException(file, 1, "file is shorter than its header says");
+            BitDataset data = new BitDataset(numRows, numFeatures);
+            data.setBins(bins);
+            mapColumn(channel, offset, columnBytes, data.getLabels());
+            offset += columnBytes;
+            for (int f=0; f<numFeatures; f++){
+                if (data.isCoded(f)){
+                    mapCodes(channel, offset, numRows, data.getCodes(f));
+                    offset += codeColumnBytes(numRows);
+                }
+                else{
+                    mapColumn(channel, offset, columnBytes, data.getColumn(f));
+                    offset += columnBytes;
+                }
+            }
+            data.setFeatureNames(names);
+            return data;
+        }
+    }
+
+    // Reads length header bytes starting at offset
+    private static ByteBuffer read(FileChannel channel, String file, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()){
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw new DatasetFormatException(file, 1, "truncated header");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Maps one column (each column is mapped on its own so files larger than 2GB work) and copies it into words
+    private static void mapColumn(FileChannel channel, long offset, long bytes, long[] words) throws IOException {
+        if (bytes == 0)
+            return;
+        MappedByteBuffer column = channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes);
+        column.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(words);
+    }
+
+    // Maps one code column and copies its numRows codes into codes
+    private static void mapCodes(FileChannel channel, long offset, int numRows, byte[] codes) throws IOException {
+        if (numRows == 0)
+            return;
+        channel.map(FileChannel.MapMode.READ_ONLY, offset, numRows).get(codes);
+    }
+}
@@ -0,0 +1,272 @@
+/***
+ * Name of File: BitDataset
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * BitDataset object stores a whole dataset column by column: every feature column and the label column
+ * is a packed bitset (one bit per example, 64 examples per long)
+ * Numeric and categorical features (see FeatureBins) are stored as one byte code per example instead
+ */
+
+import java.util.*;
+
+public class BitDataset {
+
+    private final int numRows; // number of examples
+    private final int numFeatures; // number of features per example
+    private final int numWords; // number of longs needed to hold one column
+    private final long[][] columns; // columns[f] holds the value of feature f for every example
+    private final long[] labels; // label bit of every example (1 for positive, 0 for negative)
+    private String[] featureNames; // names of the features (null when the data did not come with a header)
+    private FeatureBins bins; // how numeric and categorical features are coded (null when all features are boolean)
+    private byte[][] codes; // codes[f] holds the code of feature f for every example (null for boolean features)
+
+    // Constructor, makes room for rows examples with features feature values each (all false and negative)
+    public BitDataset(int rows, int features) {
+        numRows = rows;
+        numFeatures = features;
+        numWords = wordsFor(rows);
+        columns = new long[features][numWords];
+        labels = new long[numWords];
+    }
+
+    // Builds a BitDataset holding the same values and labels as the given examples
+    public static BitDataset fromExamples(List<Example> examples, int features) {
+        BitDataset data = new BitDataset(examples.size(), features);
+        for (int row=0; row<examples.size(); row++){
+            Example e = examples.get(row);
+            if (e.hasCodes())
+                throw new IllegalArgumentException("example " + row + " has numeric or categorical codes, which need the bins of a dataset");
+            for (int f=0; f<features; f++){
+                if (e.getFeatureValue(f))
+                    data.setFeatureValue(row, f, true);
+            }
+            data.setLabel(row, e.getLabel());
+        }
+        return data;
+    }
+
+    // Returns a new BitDataset made of the given rows of this one (rows may repeat)
+    public BitDataset select(int[] rows) {
+        BitDataset data = new BitDataset(rows.length, numFeatures);
+        data.setBins(bins);
+        for (int i=0; i<rows.length; i++){
+            int row = rows[i];
+            for (int f=0; f<numFeatures; f++){
+                if (isCoded(f))
+                    data.codes[f][i] = codes[f][row];
+                else if (getFeatureValue(row, f))
+                    data.setFeatureValue(i, f, true);
+            }
+            data.setLabel(i, getLabel(row));
+        }
+        return data;
+    }
+
+    // Returns a new BitDataset made of the first rows rows of this one
+    public BitDataset head(int rows) {
+        BitDataset data = new BitDataset(rows, numFeatures);
+        data.setBins(bins);
+        for (int f=0; f<numFeatures; f++){
+            if (isCoded(f))
+                System.arraycopy(codes[f], 0, data.codes[f], 0, rows);
+            else
+                copyBits(columns[f], rows, data.columns[f], 0);
+        }
+        copyBits(labels, rows, data.labels, 0);
+        data.featureNames = featureNames;
+        return data;
+    }
+
+    // Returns a new BitDataset holding the rows of all the given datasets one after another
+    // (coded parts must share the bins of the first part)
+    public static BitDataset concat(List<BitDataset> parts, int features) {
+        int rows = 0;
+        for (BitDataset part : parts)
+            rows += part.numRows;
+
+        BitDataset data = new BitDataset(rows, features);
+        FeatureBins bins = parts.isEmpty() ? null : parts.get(0).bins;
+        data.setBins(bins);
+        int offset = 0;
+        for (BitDataset part : parts){
+            if (!FeatureBins.sameCoding(part.bins, bins))
+                throw new IllegalArgumentException("the datasets are coded with different bins");
+            for (int f=0; f<features; f++){
+                if (data.isCoded(f))
+                    System.arraycopy(part.codes[f], 0, data.codes[f], offset, part.numRows);
+                else
+                    copyBits(part.columns[f], part.numRows, data.columns[f], offset);
+            }
+            copyBits(part.labels, part.numRows, data.labels, offset);
+            offset += part.numRows;
+        }
+        return data;
+    }
+
+    // ORs the first numBits bits of src into dst starting at bit offset of dst
+    // (bits past the last row of a column are always zero, so whole words can be copied)
+    private static void copyBits(long[] src, int numBits, long[] dst, int offset) {
+        int srcWords = wordsFor(numBits);
+        int base = offset >>> 6;
+        int shift = offset & 63;
+        for (int w=0; w<srcWords; w++){
+            long v = src[w];
+            if (w == srcWords - 1 && (numBits & 63) != 0)
+                v &= (1L << numBits) - 1; // drop bits past the last row
+            dst[base + w] |= v << shift;
+            if (shift != 0 && base + w + 1 < dst.length)
+                dst[base + w + 1] |= v >>> (64 - shift);
+        }
+    }
+
+    // Number of longs needed to store rows bits
+    static int wordsFor(int rows) {
+        return (rows + 63) >>> 6;
+    }
+
+    // Set a feature value of an example
+    public void setFeatureValue(int row, int feature, boolean value) {
+        if (value)
+            columns[feature][row >>> 6] |= 1L << row;
+        else
+            columns[feature][row >>> 6] &= ~(1L << row);
+    }
+
+    // Access a feature value of an example
+    public boolean getFeatureValue(int row, int feature) {
+        return (columns[feature][row >>> 6] & (1L << row)) != 0;
+    }
+
+    /**
+     * Sets how numeric and categorical features are coded and makes room for their codes (all 0).
+     * Must be called before any code is set; null means every feature is boolean
+     */
+    public void setBins(FeatureBins b) {
+        if (b != null && b.getNumFeatures() != numFeatures)
+            throw new IllegalArgumentException("the bins are for " + b.getNumFeatures() + " features, not " + numFeatures);
+        bins = b;
+        codes = null;
+        if (b != null && b.hasCodedFeatures()){
+            codes = new byte[numFeatures][];
+            for (int f=0; f<numFeatures; f++){
+                if (b.isCoded(f))
+                    codes[f] = new byte[numRows];
+            }
+        }
+    }
+
+    // Returns the bins of the coded features (null when all features are boolean)
+    public FeatureBins getBins() {
+        return bins;
+    }
+
+    // Returns whether feature f is stored as byte codes
+    public boolean isCoded(int feature) {
+        return codes != null && codes[feature] != null;
+    }
+
+    // Returns whether any feature is stored as byte codes
+    public boolean hasCodedFeatures() {
+        return codes != null;
+    }
+
+    // Returns the number of codes of feature f (2 for boolean features)
+    public int getNumBins(int feature) {
+        return isCoded(feature) ? bins.getNumBins(feature) : 2;
+    }
+
+    // Returns whether feature f is categorical (split by category rather than by threshold)
+    public boolean isCategorical(int feature) {
+        return isCoded(feature) && bins.getKind(feature) == FeatureBins.CATEGORICAL;
+    }
+
+    // Set the code of a coded feature of an example
+    public void setCode(int row, int feature, int code) {
+        if (code < 0 || code >= bins.getNumBins(feature))
+            throw new IllegalArgumentException("code " + code + " out of range for feature " + feature);
+        codes[feature][row] = (byte) code;
+    }
+
+    // Access the code of a feature of an example (0 or 1 for boolean features)
+    public int getCode(int row, int feature) {
+        if (codes != null && codes[feature] != null)
+            return codes[feature][row] & 0xFF;
+        return getFeatureValue(row, feature) ? 1 : 0;
+    }
+
+    // Returns the codes of feature f (shared, not a copy; null for boolean features)
+    byte[] getCodes(int feature) {
+        return codes != null ? codes[feature] : null;
+    }
+
+    // set the label of an example
+    public void setLabel(int row, boolean label) {
+        if (label)
+            labels[row >>> 6] |= 1L << row;
+        else
+            labels[row >>> 6] &= ~(1L << row);
+    }
+
+    // access the label of an example
+    public boolean getLabel(int row) {
+        return (labels[row >>> 6] & (1L << row)) != 0;
+    }
+
+    // Returns the packed bits of feature f (shared, not a copy)
+    long[] getColumn(int feature) {
+        return columns[feature];
+    }
+
+    // Returns the packed label bits (shared, not a copy)
+    long[] getLabels() {
+        return labels;
+    }
+
+    // Copies an example out of the dataset (examples only hold boolean features)
+    public Example toExample(int row) {
+        Example e = new Example(numFeatures);
+        for (int f=0; f<numFeatures; f++){
+            if (isCoded(f))
+                e.setCode(f, getCode(row, f));
+            else
+                e.setFeatureValue(f, getFeatureValue(row, f));
+        }
+        e.setLabel(getLabel(row));
+        return e;
+    }
+
+    // Sets the names of the features (one per feature)
+    public void setFeatureNames(String[] names) {
+        if (names.length != numFeatures)
+            throw new IllegalArgumentException("expected " + numFeatures + " feature names but got " + names.length);
+        featureNames = names.clone();
+    }
+
+    // returns the name of feature f ("Feature f" when the data has no names)
+    public String getFeatureName(int feature) {
+        return featureNames != null ? featureNames[feature] : "Feature " + feature;
+    }
+
+    // returns the number of examples
+    public int getNumRows() {
+        return numRows;
+    }
+
+    // returns the number of features of every example
+    public int getNumFeatures() {
+        return numFeatures;
+    }
+
+    // returns the number of longs used by one column
+    public int getNumWords() {
+        return numWords;
+    }
+
+    // returns the number of positive examples
+    public int countPositive() {
+        int count = 0;
+        for (int w=0; w<numWords; w++)
+            count += Long.bitCount(labels[w]);
+        return count;
+    }
+}
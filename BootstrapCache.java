@@ -0,0 +1,56 @@
+/***
+ * Name of File: BootstrapCache
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * BootstrapCache draws the bootstrap sample of each tree index once and hands the same sample to every forest that
+ * asks for it, so forests trained on the same data with the same seed but different parameters share their samples.
+ * Samples are kept as one byte per row (in-bag counts above 255 are practically impossible and are rejected)
+ */
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class BootstrapCache {
+
+    private final int numRows; // rows of the training data
+    private final long seed; // forest seed the samples are drawn for
+    private final AtomicReferenceArray<byte[]> samples; // samples.get(i) = in-bag counts of tree i, null until first used
+
+    // Constructor, makes room for the samples of maxTrees trees over numRows rows
+    public BootstrapCache(int rows, long s, int maxTrees) {
+        numRows = rows;
+        seed = s;
+        samples = new AtomicReferenceArray<byte[]>(maxTrees);
+    }
+
+    // Returns the in-bag counts of tree treeIndex, drawing them the first time they are asked for
+    public int[] get(int treeIndex) {
+        byte[] sample = samples.get(treeIndex);
+        if (sample == null){
+            int[] counts = RandomForest.bootstrap(numRows, new Random(RandomForest.treeSeed(seed, treeIndex)));
+            sample = new byte[numRows];
+            for (int i=0; i<numRows; i++){
+                if (counts[i] > 255)
+                    throw new IllegalStateException("in-bag count " + counts[i] + " does not fit the cache");
+                sample[i] = (byte) counts[i];
+            }
+            if (!samples.compareAndSet(treeIndex, null, sample)) // another forest drew it at the same time
+                sample = samples.get(treeIndex);
+        }
+
+        int[] counts = new int[numRows];
+        for (int i=0; i<numRows; i++)
+            counts[i] = sample[i] & 0xff;
+        return counts;
+    }
+
+    // returns the number of rows the samples are drawn over
+    public int getNumRows() {
+        return numRows;
+    }
+
+    // returns the forest seed the samples belong to
+    public long getSeed() {
+        return seed;
+    }
+}
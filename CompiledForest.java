@@ -0,0 +1,466 @@
+/***
+ * Name of File: CompiledForest
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * CompiledForest object is a trained forest flattened into primitive arrays (structure of arrays) for fast prediction.
+ * The nodes of each tree are stored breadth-first, and the two children of a node are always next to each other:
+ * the true child at child[node] and the false child at child[node] + 1
+ * Every node also keeps its (bootstrap weighted) positive and negative training counts, so a leaf can give a class
+ * frequency as well as a decision
+ * A split on a numeric or categorical feature (see FeatureBins) also keeps its threshold or category; forests with
+ * only boolean splits are scored straight from the bit columns
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class CompiledForest {
+
+    static final int BATCH_ROWS = 1024; // rows scored by one tree before moving to the next tree
+
+    private final int[] roots; // roots[t] is the index of the root node of tree t
+    private final int[] feature; // split feature of each node, -1 for leaves
+    private final int[] child; // index of the true child of each node (the false child follows it), unused for leaves
+    private final byte[] decision; // leaf decision of each node (1 for positive, 0 for negative)
+    private final int[] numPos; // positive training examples that reached each node
+    private final int[] numNeg; // negative training examples that reached each node
+    private final int[] threshold; // a row goes to the true child if its code of the split feature is above this (0 for boolean splits)
+    private final byte[] category; // 1 if a row goes to the true child when its code equals threshold instead
+    private final boolean codedSplits; // whether any node splits on a code rather than on a bit
+
+    // Constructor, wraps already flattened arrays
+    CompiledForest(int[] r, int[] f, int[] c, byte[] d, int[] p, int[] n, int[] th, byte[] cat) {
+        roots = r;
+        feature = f;
+        child = c;
+        decision = d;
+        numPos = p;
+        numNeg = n;
+        threshold = th;
+        category = cat;
+        boolean coded = false;
+        for (int node=0; node<f.length && !coded; node++)
+            coded = th[node] != 0 || cat[node] != 0;
+        codedSplits = coded;
+    }
+
+    // Flattens trained trees into a CompiledForest
+    public static CompiledForest compile(List<DecisionTree> trees) {
+        int numNodes = 0;
+        for (DecisionTree tree : trees)
+            numNodes += countNodes(tree.getRoot());
+
+        int[] roots = new int[trees.size()];
+        int[] feature = new int[numNodes];
+        int[] child = new int[numNodes];
+        byte[] decision = new byte[numNodes];
+        int[] numPos = new int[numNodes];
+        int[] numNeg = new int[numNodes];
+        int[] threshold = new int[numNodes];
+        byte[] category = new byte[numNodes];
+
+        int next = 0; // next free node index
+        ArrayDeque<TreeNode> queue = new ArrayDeque<TreeNode>();
+        for (int t=0; t<trees.size(); t++){
+            roots[t] = next;
+            queue.add(trees.get(t).getRoot());
+            int end = next + 1; // index right after the last node given a slot so far
+
+            while (!queue.isEmpty()){ // breadth-first, nodes get their index in the order they leave the queue
+                TreeNode node = queue.poll();
+                int index = next++;
+                numPos[index] = node.numPos;
+                numNeg[index] = node.numNeg;
+                if (node.isLeaf){
+                    feature[index] = -1;
+                    decision[index] = (byte) (node.decision ? 1 : 0);
+                }
+                else{
+                    feature[index] = node.getSplitFeature();
+                    threshold[index] = node.getSplitThreshold();
+                    category[index] = (byte) (node.isCategorySplit() ? 1 : 0);
+                    child[index] = end; // both children get the next two free slots
+                    end += 2;
+                    queue.add(node.trueChild);
+                    queue.add(node.falseChild);
+                }
+            }
+        }
+        return new CompiledForest(roots, feature, child, decision, numPos, numNeg, threshold, category);
+    }
+
+    // Joins forests into one, keeping their trees in order
+    public static CompiledForest concat(List<CompiledForest> parts) {
+        int numTrees = 0;
+        int numNodes = 0;
+        for (CompiledForest part : parts){
+            numTrees += part.roots.length;
+            numNodes += part.feature.length;
+        }
+        int[] roots = new int[numTrees];
+        int[] feature = new int[numNodes];
+        int[] child = new int[numNodes];
+        byte[] decision = new byte[numNodes];
+        int[] numPos = new int[numNodes];
+        int[] numNeg = new int[numNodes];
+        int[] threshold = new int[numNodes];
+        byte[] category = new byte[numNodes];
+
+        int nextTree = 0;
+        int next = 0;
+        for (CompiledForest part : parts){
+            int size = part.feature.length;
+            for (int t=0; t<part.roots.length; t++)
+                roots[nextTree++] = part.roots[t] + next;
+            System.arraycopy(part.feature, 0, feature, next, size);
+            System.arraycopy(part.decision, 0, decision, next, size);
+            System.arraycopy(part.numPos, 0, numPos, next, size);
+            System.arraycopy(part.numNeg, 0, numNeg, next, size);
+            System.arraycopy(part.threshold, 0, threshold, next, size);
+            System.arraycopy(part.category, 0, category, next, size);
+            for (int node=0; node<size; node++){
+                if (feature[next + node] >= 0)
+                    child[next + node] = part.child[node] + next;
+            }
+            next += size;
+        }
+        return new CompiledForest(roots, feature, child, decision, numPos, numNeg, threshold, category);
+    }
+
+    /**
+     * Returns a copy of this forest in which tree treeIndices[i] is replaced by replacements.get(i)
+     * The node arrays of the kept trees are copied as they are (only their child indices move), so this forest
+     * stays unchanged and does not need its DecisionTrees
+     */
+    public CompiledForest replaceTrees(int[] treeIndices, List<DecisionTree> replacements) {
+        CompiledForest added = compile(replacements);
+        CompiledForest[] source = new CompiledForest[roots.length]; // forest each tree of the result comes from
+        int[] sourceTree = new int[roots.length]; // index of the tree in that forest
+        for (int t=0; t<roots.length; t++){
+            source[t] = this;
+            sourceTree[t] = t;
+        }
+        for (int i=0; i<treeIndices.length; i++){
+            source[treeIndices[i]] = added;
+            sourceTree[treeIndices[i]] = i;
+        }
+
+        int numNodes = 0;
+        for (int t=0; t<roots.length; t++)
+            numNodes += source[t].treeSize(sourceTree[t]);
+        int[] newRoots = new int[roots.length];
+        int[] newFeature = new int[numNodes];
+        int[] newChild = new int[numNodes];
+        byte[] newDecision = new byte[numNodes];
+        int[] newPos = new int[numNodes];
+        int[] newNeg = new int[numNodes];
+        int[] newThreshold = new int[numNodes];
+        byte[] newCategory = new byte[numNodes];
+
+        int next = 0;
+        for (int t=0; t<roots.length; t++){
+            CompiledForest from = source[t];
+            int root = from.roots[sourceTree[t]];
+            int size = from.treeSize(sourceTree[t]);
+            newRoots[t] = next;
+            System.arraycopy(from.feature, root, newFeature, next, size);
+            System.arraycopy(from.decision, root, newDecision, next, size);
+            System.arraycopy(from.numPos, root, newPos, next, size);
+            System.arraycopy(from.numNeg, root, newNeg, next, size);
+            System.arraycopy(from.threshold, root, newThreshold, next, size);
+            System.arraycopy(from.category, root, newCategory, next, size);
+            for (int node=0; node<size; node++){
+                if (newFeature[next + node] >= 0)
+                    newChild[next + node] = from.child[root + node] - root + next;
+            }
+            next += size;
+        }
+        return new CompiledForest(newRoots, newFeature, newChild, newDecision, newPos, newNeg, newThreshold, newCategory);
+    }
+
+    // Number of nodes of tree t (the nodes of a tree are stored together, right before the next tree)
+    private int treeSize(int t) {
+        int end = t + 1 < roots.length ? roots[t + 1] : feature.length;
+        return end - roots[t];
+    }
+
+    // Counts the nodes reachable from node
+    private static int countNodes(TreeNode node) {
+        if (node.isLeaf)
+            return 1;
+        return 1 + countNodes(node.trueChild) + countNodes(node.falseChild);
+    }
+
+    // Returns the leaf of tree t that example ex falls into
+    private int leaf(int t, Example ex) {
+        int node = roots[t];
+        int f;
+        if (!codedSplits && !ex.hasCodes()){
+            while ((f = feature[node]) >= 0)
+                node = ex.getFeatureValue(f) ? child[node] : child[node] + 1;
+        }
+        else{
+            if (!ex.hasCodes())
+                throw new IllegalStateException("the forest splits on numeric or categorical features, set their codes on the example");
+            while ((f = feature[node]) >= 0)
+                node = goesTrue(node, ex.getCode(f)) ? child[node] : child[node] + 1;
+        }
+        return node;
+    }
+
+    // Returns the leaf of tree t that one row of a columnar dataset falls into
+    private int leaf(int t, BitDataset d, int row) {
+        int node = roots[t];
+        int f;
+        if (!codedSplits && !d.hasCodedFeatures()){
+            while ((f = feature[node]) >= 0)
+                node = d.getFeatureValue(row, f) ? child[node] : child[node] + 1;
+        }
+        else{
+            while ((f = feature[node]) >= 0)
+                node = goesTrue(node, d.getCode(row, f)) ? child[node] : child[node] + 1;
+        }
+        return node;
+    }
+
+    // Returns whether a row whose code of the split feature of node is code goes to the true child
+    private boolean goesTrue(int node, int code) {
+        return category[node] != 0 ? code == threshold[node] : code > threshold[node];
+    }
+
+    // Classifies example ex with tree t
+    public boolean classify(int t, Example ex) {
+        return decision[leaf(t, ex)] != 0;
+    }
+
+    // Classifies one row of a columnar dataset with tree t
+    public boolean classify(int t, BitDataset d, int row) {
+        return decision[leaf(t, d, row)] != 0;
+    }
+
+    // Returns the majority classification of all the trees (ties count as positive)
+    // Stops walking trees as soon as the remaining trees can no longer change the majority
+    public boolean evaluateExample(Example ex) {
+        return evaluateExample(ex, 0);
+    }
+
+    // Returns the majority classification of all the trees for one row of a columnar dataset (ties count as positive)
+    // Stops walking trees as soon as the remaining trees can no longer change the majority
+    public boolean evaluateRow(BitDataset d, int row) {
+        return evaluateRow(d, row, 0);
+    }
+
+    /**
+     * Classifies example ex by majority vote, stopping early once the vote is decided or, when delta > 0, once the
+     * votes so far make the other outcome unlikely: after k trees with k+ positive and k- negative votes, the
+     * Hoeffding bound says the vote fraction of the whole forest is on the same side of 1/2 as (k+ - k-) with
+     * probability at least 1 - delta when (k+ - k-)^2 >= 2 k ln(2 / delta)
+     * @param delta: allowed probability of returning a different decision than the full vote, 0 for an exact vote
+     */
+    public boolean evaluateExample(Example ex, double delta) {
+        double bound = confidenceBound(delta);
+        int numTrue = 0;
+        for (int t=0; t<roots.length; t++){
+            numTrue += decision[leaf(t, ex)];
+            int vote = decided(numTrue, t + 1, bound);
+            if (vote >= 0)
+                return vote == 1;
+        }
+        return numTrue >= roots.length - numTrue;
+    }
+
+    // Same as evaluateExample(ex, delta) for one row of a columnar dataset
+    public boolean evaluateRow(BitDataset d, int row, double delta) {
+        double bound = confidenceBound(delta);
+        int numTrue = 0;
+        for (int t=0; t<roots.length; t++){
+            numTrue += decision[leaf(t, d, row)];
+            int vote = decided(numTrue, t + 1, bound);
+            if (vote >= 0)
+                return vote == 1;
+        }
+        return numTrue >= roots.length - numTrue;
+    }
+
+    // 2 ln(2 / delta), or infinity (never stop on confidence) when delta is 0
+    private static double confidenceBound(double delta) {
+        if (delta < 0 || delta >= 1)
+            throw new IllegalArgumentException("delta must be at least 0 and less than 1");
+        return delta == 0 ? Double.POSITIVE_INFINITY : 2 * Math.log(2 / delta);
+    }
+
+    // Returns 1 (positive) or 0 (negative) if numTrue positive votes out of the first k trees decide the majority,
+    // either for certain or within the confidence bound, and -1 if more trees are needed
+    private int decided(int numTrue, int k, double bound) {
+        int numFalse = k - numTrue;
+        if (2 * numTrue >= roots.length) // ties count as positive
+            return 1;
+        if (2 * numFalse > roots.length)
+            return 0;
+        double margin = numTrue - numFalse;
+        if (margin * margin >= k * bound)
+            return margin > 0 ? 1 : 0;
+        return -1;
+    }
+
+    // Returns the number of trees voting positive for example ex
+    public int countVotes(Example ex) {
+        int numTrue = 0;
+        for (int t=0; t<roots.length; t++)
+            numTrue += decision[leaf(t, ex)];
+        return numTrue;
+    }
+
+    // Returns the number of trees voting positive for one row of a columnar dataset
+    public int countVotes(BitDataset d, int row) {
+        int numTrue = 0;
+        for (int t=0; t<roots.length; t++)
+            numTrue += decision[leaf(t, d, row)];
+        return numTrue;
+    }
+
+    // Returns the probability that example ex is positive: the positive class frequency of the leaf it reaches in
+    // each tree, averaged over the trees
+    public double predictProbability(Example ex) {
+        double sum = 0;
+        for (int t=0; t<roots.length; t++)
+            sum += leafFrequency(leaf(t, ex));
+        return sum / roots.length;
+    }
+
+    // Same as predictProbability(ex) for one row of a columnar dataset
+    public double predictProbability(BitDataset d, int row) {
+        double sum = 0;
+        for (int t=0; t<roots.length; t++)
+            sum += leafFrequency(leaf(t, d, row));
+        return sum / roots.length;
+    }
+
+    // Positive class frequency of a leaf, its decision when no training example reached it
+    private double leafFrequency(int node) {
+        int total = numPos[node] + numNeg[node];
+        return total == 0 ? decision[node] : numPos[node] / (double) total;
+    }
+
+    // Counts the positive votes of every row of a columnar dataset
+    // Rows are scored tree by tree in blocks of BATCH_ROWS, so the nodes of a tree stay in cache for the whole block
+    public int[] countVotes(BitDataset d) {
+        int[] votes = new int[d.getNumRows()];
+        for (int from=0; from<votes.length; from+=BATCH_ROWS)
+            countVotes(d, from, Math.min(from + BATCH_ROWS, votes.length), votes);
+        return votes;
+    }
+
+    // Adds the positive votes of rows from (inclusive) to to (exclusive) of d into votes[from..to)
+    public void countVotes(BitDataset d, int from, int to, int[] votes) {
+        if (codedSplits || d.hasCodedFeatures()){
+            for (int t=0; t<roots.length; t++){
+                for (int row=from; row<to; row++)
+                    votes[row] += decision[leaf(t, d, row)];
+            }
+            return;
+        }
+        for (int t=0; t<roots.length; t++){
+            int root = roots[t];
+            for (int row=from; row<to; row++){
+                int node = root;
+                int f;
+                while ((f = feature[node]) >= 0)
+                    node = d.getFeatureValue(row, f) ? child[node] : child[node] + 1;
+                votes[row] += decision[node];
+            }
+        }
+    }
+
+    // Classifies every row of a columnar dataset by majority vote (ties count as positive)
+    // Returns the decisions packed one bit per row, in the same layout as a BitDataset column
+    public long[] predictBatch(BitDataset d) {
+        int[] votes = countVotes(d);
+        long[] result = new long[d.getNumWords()];
+        for (int row=0; row<votes.length; row++){
+            if (votes[row] >= roots.length - votes[row])
+                result[row >>> 6] |= 1L << row;
+        }
+        return result;
+    }
+
+    // Number of bytes write() needs
+    int byteSize() {
+        return 8 + 4 * roots.length + 20 * feature.length + decision.length + category.length;
+    }
+
+    // Writes the node arrays to buffer: number of trees, number of nodes, roots, features, children, decisions,
+    // positive counts, negative counts, thresholds, categories
+    void write(ByteBuffer buffer) {
+        buffer.putInt(roots.length).putInt(feature.length);
+        buffer.asIntBuffer().put(roots).put(feature).put(child);
+        buffer.position(buffer.position() + 4 * (roots.length + 2 * feature.length));
+        buffer.put(decision);
+        buffer.asIntBuffer().put(numPos).put(numNeg).put(threshold);
+        buffer.position(buffer.position() + 12 * feature.length);
+        buffer.put(category);
+    }
+
+    // Reads node arrays written by write() in model file format version, each array is one bulk transfer out of buffer
+    // Without counts (before version 3) every leaf counts as one example of its decision, and every split is a
+    // boolean split before version 5
+    static CompiledForest read(ByteBuffer buffer, int version, int numFeatures) throws IOException {
+        int numTrees = buffer.getInt();
+        int numNodes = buffer.getInt();
+        int[] roots = new int[numTrees];
+        int[] feature = new int[numNodes];
+        int[] child = new int[numNodes];
+        byte[] decision = new byte[numNodes];
+        buffer.asIntBuffer().get(roots).get(feature).get(child);
+        buffer.position(buffer.position() + 4 * (numTrees + 2 * numNodes));
+        buffer.get(decision);
+        int[] numPos = new int[numNodes];
+        int[] numNeg = new int[numNodes];
+        int[] threshold = new int[numNodes];
+        byte[] category = new byte[numNodes];
+        if (version >= 3){
+            buffer.asIntBuffer().get(numPos).get(numNeg);
+            buffer.position(buffer.position() + 8 * numNodes);
+        }
+        else{
+            for (int node=0; node<numNodes; node++){
+                numPos[node] = decision[node];
+                numNeg[node] = 1 - decision[node];
+            }
+        }
+        if (version >= 5){
+            buffer.asIntBuffer().get(threshold);
+            buffer.position(buffer.position() + 4 * numNodes);
+            buffer.get(category);
+        }
+        check(roots, feature, child, numFeatures);
+        return new CompiledForest(roots, feature, child, decision, numPos, numNeg, threshold, category);
+    }
+
+    // Throws an IOException unless every root is a node, every split feature is below numFeatures and the children of
+    // every split node come after it inside the arrays (so a corrupt file cannot send leaf() out of bounds or in a loop)
+    private static void check(int[] roots, int[] feature, int[] child, int numFeatures) throws IOException {
+        int numNodes = feature.length;
+        for (int t=0; t<roots.length; t++){
+            if (roots[t] < 0 || roots[t] >= numNodes)
+                throw new IOException("tree " + t + " has root node " + roots[t] + " but the model has " + numNodes + " nodes");
+        }
+        for (int node=0; node<numNodes; node++){
+            if (feature[node] < -1 || feature[node] >= numFeatures)
+                throw new IOException("node " + node + " splits on feature " + feature[node] + " but the model has " + numFeatures + " features");
+            if (feature[node] >= 0 && (child[node] <= node || child[node] >= numNodes - 1))
+                throw new IOException("node " + node + " has its children at node " + child[node] + ", not after it among the " + numNodes + " nodes");
+        }
+    }
+
+    // returns the number of trees
+    public int getNumTrees() {
+        return roots.length;
+    }
+
+    // returns the total number of nodes of all trees
+    public int getNumNodes() {
+        return feature.length;
+    }
+}
@@ -0,0 +1,27 @@
+/***
+ * Name of File: DatasetFormatException
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * DatasetFormatException is thrown when a data file does not follow the expected format
+ * (unknown label, bad feature value or wrong number of feature values on a line)
+ */
+
+import java.io.IOException;
+
+public class DatasetFormatException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int lineNumber; // line of the file the problem was found on (1 is the header)
+
+    // Constructor
+    public DatasetFormatException(String file, int line, String message) {
+        super(file + ", line " + line + ": " + message);
+        lineNumber = line;
+    }
+
+    // returns the line of the file the problem was found on
+    public int getLineNumber() {
+        return lineNumber;
+    }
+}
@@ -0,0 +1,242 @@
+/***
+ * Name of File: DatasetReader
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * DatasetReader reads a tab separated data file (a header line, then one example per line: a positive/negative
+ * label followed by TRUE/FALSE feature values) straight from bytes into BitDatasets.
+ * The file can be read all at once or chunk by chunk, in which case only one chunk is held in memory
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+public class DatasetReader implements Closeable {
+
+    static final int BUFFER_SIZE = 1 << 20; // bytes read from the file at a time
+    static final int DEFAULT_CHUNK_ROWS = 1 << 16; // rows per chunk when reading the whole file (a multiple of 64)
+    private static final int MAX_TOKEN = 16; // longest token kept for comparison and error messages
+
+    private final String fileName;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final String[] featureNames; // names of the features, taken from the header
+    private final byte[] token = new byte[MAX_TOKEN]; // the token being parsed
+    private int tokenLength; // length of the token being parsed (may exceed MAX_TOKEN)
+    private int lineNumber = 1; // line of the file being parsed
+    private int numRowsRead = 0; // examples read so far
+
+    // Thrown by the boolean parser for a cell that is not TRUE/FALSE, so read() can read the file as a table instead
+    static class NonBooleanCellException extends DatasetFormatException {
+        private static final long serialVersionUID = 1L;
+
+        NonBooleanCellException(String file, int line, String message) {
+            super(file, line, message);
+        }
+    }
+
+    // Constructor, opens the file and reads its header line
+    public DatasetReader(String file) throws IOException {
+        fileName = file;
+        channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+        buffer.flip(); // nothing read yet
+
+        String header = readHeader();
+        if (header == null){
+            close();
+            throw new DatasetFormatException(fileName, 1, "missing header line");
+        }
+        String[] columns = header.split("\t");
+        featureNames = Arrays.copyOfRange(columns, 1, columns.length); // first column is the label
+    }
+
+    // Reads the whole file into one BitDataset
+    public BitDataset readAll() throws IOException {
+        ArrayList<BitDataset> chunks = new ArrayList<BitDataset>();
+        BitDataset chunk;
+        while ((chunk = readChunk(DEFAULT_CHUNK_ROWS)) != null)
+            chunks.add(chunk);
+
+        BitDataset data = BitDataset.concat(chunks, featureNames.length);
+        data.setFeatureNames(featureNames);
+        return data;
+    }
+
+    // Reads the file in chunks of rowsPerChunk examples and hands each chunk to consumer
+    public void forEachChunk(int rowsPerChunk, Consumer<BitDataset> consumer) throws IOException {
+        BitDataset chunk;
+        while ((chunk = readChunk(rowsPerChunk)) != null)
+            consumer.accept(chunk);
+    }
+
+    // Reads the next maxRows examples (fewer at the end of the file)
+    // Returns null once every example has been read
+    public BitDataset readChunk(int maxRows) throws IOException {
+        BitDataset chunk = new BitDataset(maxRows, featureNames.length);
+        int rows = 0;
+        while (rows < maxRows && readRow(chunk, rows))
+            rows++;
+
+        if (rows == 0)
+            return null;
+        numRowsRead += rows;
+        chunk = rows < maxRows ? chunk.head(rows) : chunk;
+        chunk.setFeatureNames(featureNames);
+        return chunk;
+    }
+
+    // Parses one line into row of data, skipping blank lines
+    // Returns false at the end of the file
+    private boolean readRow(BitDataset data, int row) throws IOException {
+        int c = nextByte();
+        while (c == '\n' || c == '\r'){ // blank line
+            if (c == '\n')
+                lineNumber++;
+            c = nextByte();
+        }
+        if (c == -1)
+            return false;
+
+        c = readToken(c); // example label
+        if (matches("positive"))
+            data.setLabel(row, true);
+        else if (!matches("negative"))
+            throw new DatasetFormatException(fileName, lineNumber, "unknown label '" + tokenString() + "'");
+
+        int numFeatures = featureNames.length;
+        int feature = 0;
+        while (c == '\t'){ // another feature value follows
+            c = readToken(nextByte());
+            if (feature >= numFeatures){
+                feature++;
+                continue; // keep counting so the error reports how many values the line has
+            }
+            if (matches("true"))
+                data.setFeatureValue(row, feature, true);
+            else if (!matches("false"))
+                throw new NonBooleanCellException(fileName, lineNumber, "bad value '" + tokenString() + "' for feature " + featureNames[feature]);
+            feature++;
+        }
+        if (feature != numFeatures)
+            throw new DatasetFormatException(fileName, lineNumber, "expected " + numFeatures + " feature values but found " + feature);
+
+        while (c == '\r')
+            c = nextByte();
+        if (c == '\n')
+            lineNumber++;
+        return true;
+    }
+
+    // Reads the token starting with byte c into token
+    // Returns the byte that ended the token (tab, line end or -1)
+    private int readToken(int c) throws IOException {
+        tokenLength = 0;
+        while (c != '\t' && c != '\n' && c != '\r' && c != -1){
+            if (tokenLength < MAX_TOKEN)
+                token[tokenLength] = (byte) c;
+            tokenLength++;
+            c = nextByte();
+        }
+        return c;
+    }
+
+    // Returns whether the current token equals word (which must be lower case), ignoring case
+    private boolean matches(String word) {
+        if (tokenLength != word.length())
+            return false;
+        for (int i=0; i<tokenLength; i++){
+            if ((token[i] | 0x20) != word.charAt(i)) // 0x20 maps upper case letters to lower case
+                return false;
+        }
+        return true;
+    }
+
+    // Returns the current token as a String (for error messages)
+    private String tokenString() {
+        return new String(token, 0, Math.min(tokenLength, MAX_TOKEN)) + (tokenLength > MAX_TOKEN ? "..." : "");
+    }
+
+    // Reads the header line, returns null if the file is empty
+    private String readHeader() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int c = nextByte();
+        if (c == -1)
+            return null;
+        while (c != '\n' && c != -1){
+            if (c != '\r')
+                header.write(c);
+            c = nextByte();
+        }
+        lineNumber++;
+        return header.toString("UTF-8");
+    }
+
+    // Returns the next byte of the file, or -1 at the end of the file
+    private int nextByte() throws IOException {
+        if (!buffer.hasRemaining()){
+            buffer.clear();
+            int n = channel.read(buffer);
+            buffer.flip();
+            if (n <= 0)
+                return -1;
+        }
+        return buffer.get() & 0xff;
+    }
+
+    // returns the names of the features
+    public String[] getFeatureNames() {
+        return featureNames.clone();
+    }
+
+    // returns the number of features per example
+    public int getNumFeatures() {
+        return featureNames.length;
+    }
+
+    // returns the number of examples read so far
+    public int getNumRowsRead() {
+        return numRowsRead;
+    }
+
+    // Reads a whole data file into a BitDataset
+    // Binary dataset files (see BinaryDataset) are memory-mapped instead of parsed, and text files with numeric or
+    // categorical cells are read by FeatureBins.readTable() with bins fitted to the file: right away when the first
+    // example has such a cell, otherwise as soon as the boolean parser meets one further down
+    public static BitDataset read(String file) throws IOException {
+        if (BinaryDataset.isBinary(file))
+            return BinaryDataset.map(file);
+        if (FeatureBins.hasNonBooleanCells(file))
+            return FeatureBins.readTable(file, null);
+        try (DatasetReader reader = new DatasetReader(file)){
+            return reader.readAll();
+        }
+        catch (NonBooleanCellException e) {
+            return FeatureBins.readTable(file, null);
+        }
+    }
+
+    // Reads a whole data file to be scored by a forest, coding its numeric and categorical cells with the bins of
+    // the training data (RandomForest.getBins(), null when all features are boolean; then every cell must be TRUE or
+    // FALSE, new bins are never fitted)
+    public static BitDataset read(String file, FeatureBins bins) throws IOException {
+        if (BinaryDataset.isBinary(file)){
+            BitDataset data = BinaryDataset.map(file);
+            if (!FeatureBins.sameCoding(data.getBins(), bins))
+                throw new DatasetFormatException(file, 1, "the file is coded with different bins than the forest");
+            return data;
+        }
+        if (bins == null || !bins.hasCodedFeatures()){
+            try (DatasetReader reader = new DatasetReader(file)){
+                return reader.readAll();
+            }
+        }
+        return FeatureBins.readTable(file, bins);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
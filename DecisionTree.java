@@ -3,55 +3,248 @@
  * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
  * 
  * DecisionTree object represents a binary classification tree composed of TreeNode objects  
+ * A tree is built depth-first (each node counts its own rows with bitset popcounts) or, with setLevelWise(true),
+ * one depth at a time (one sweep over the rows per depth gathers the counts of every open node of that depth)
+ * Numeric and categorical features (byte codes, see FeatureBins) are scored from a histogram of the codes of the rows of
+ * a node: one pass over the rows gives the counts of every threshold, so rows are never sorted
+ * With setParallelSplit(), the candidates of a big node are counted on the fork/join pool (see countCandidates())
+ * Splits are scored by information gain (entropy, from a table of n log2 n) or, with setCriterion(), by Gini impurity
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class DecisionTree {
+	static final int MIN_TASK_WORDS = 256; // fewest row words (64 rows each) one split counting task is given
+	static final int TASKS_PER_THREAD = 4; // split counting tasks per pool thread, more tasks balance uneven ranges better
+	static final int NLOG2N_TABLE_SIZE = 1 << 18; // counts below this take n log2 n from NLOG2N, bigger ones compute it
+	private static final double[] NLOG2N = new double[NLOG2N_TABLE_SIZE]; // NLOG2N[n] = n log2 n (0 for n = 0)
+	static {
+		for(int n=1; n<NLOG2N_TABLE_SIZE; n++)
+			NLOG2N[n] = n * (Math.log(n) / Math.log(2));
+	}
+
+	// Impurity measure a split is scored with
+	public enum SplitCriterion {
+		ENTROPY, // information gain, the default
+		GINI // decrease of the Gini impurity, needs no logarithms at all
+	}
+
     private TreeNode root = null; //stores the root of the decision tree
 	private Integer numTotalFeatures;
 	private Integer numFeatChoose;
 	private Integer maxDepth;
 	private Integer minSamples;
+	private final Random rand; // random number generator used only by this tree (feature subsampling)
+	private BitDataset data; // dataset the tree is being trained on (only set during training)
+	private int[] featureOrder; // permutation of all features, its first numFeatChoose entries are the candidates of the current node
+	private long[][] weightPlanes; // bit k of the weight of every training row, weightPlanes[k] is a bitset like a column
+	private boolean levelWise = false; // build the tree one depth at a time instead of depth-first
+	private int[] rowWeights; // weight of every training row (only set during training)
+	private int[] histogram; // scratch histogram of a coded feature: weight, then positive weight, of each code
+	private int parallelSplitRows = 0; // nodes with at least this many (weighted) rows count their candidates in parallel, 0 = never
+	private SplitCriterion criterion = SplitCriterion.ENTROPY;
+	private long splitEvaluations; // candidate splits scored by the last train()
+	private long trainNanos; // time the last train() took
+	private ForestListener listener; // told about every train() of this tree, null for none
+	private boolean coded; // whether the tree was trained on numeric or categorical features (examples must carry codes)
 
 	// Constructor for DecisionTree
 	public DecisionTree(int totalFeat, int featChoose, int depth, int minSamp){
+		this(totalFeat, featChoose, depth, minSamp, new Random());
+	}
+
+	// Constructor for DecisionTree with its own random number generator, so a seeded tree is reproducible
+	// and several trees can be trained on different threads at the same time
+	public DecisionTree(int totalFeat, int featChoose, int depth, int minSamp, Random r){
 		numTotalFeatures = totalFeat;
 		numFeatChoose = featChoose;
 		maxDepth = depth;
 		minSamples = minSamp;
+		rand = r;
 	}
 	
+	// Builds the tree one depth at a time (true) or depth-first (false, the default). Both choose splits the same way,
+	// but candidate features are drawn in a different node order, so a seeded tree differs between the two
+	// Level-wise building reads the rows sequentially once per depth and never recurses, which suits deep trees
+	// and large datasets
+	public void setLevelWise(boolean l){
+		levelWise = l;
+	}
+
+	// Counts the candidate features of every node with at least minRows (weighted) rows in parallel: one task per
+	// candidate and range of rows, on the fork/join pool the tree is trained in (the common pool otherwise). Smaller
+	// nodes, and level-wise building, stay sequential. The tree is the same as without it; 0 turns it off
+	// Worth it when a few trees are trained on many rows, so the upper nodes would otherwise keep only a few threads busy
+	public void setParallelSplit(int minRows){
+		if(minRows < 0)
+			throw new IllegalArgumentException("minRows cannot be negative");
+		parallelSplitRows = minRows;
+	}
+
+	// Sets a listener that gets the TreeStats of this tree after every train() (null for none)
+	// Trees trained by a RandomForest report to the listeners of the forest instead, see RandomForest.addListener()
+	public void setListener(ForestListener l){
+		listener = l;
+	}
+
+	// Sets the impurity measure splits are scored with (entropy by default)
+	public void setCriterion(SplitCriterion c){
+		criterion = c;
+	}
+
 	public void train(ArrayList<Example> examples){
+		train(BitDataset.fromExamples(examples, numTotalFeatures));
+	}
 
-		//initialize empty positive and negative lists
-		ArrayList<Example> pos = new ArrayList<Example>();
-		ArrayList<Example> neg = new ArrayList<Example>();
-		
-		//paritition examples into positive and negative ones
-		for(Example e: examples){
-			if (e.getLabel())
-				pos.add(e);
-			else
-				neg.add(e);
+	// Trains the tree on every example of a columnar dataset
+	public void train(BitDataset d){
+		int[] weights = new int[d.getNumRows()];
+		Arrays.fill(weights, 1);
+		train(d, weights);
+	}
+
+	// Trains the tree on a columnar dataset where row r counts as weights[r] examples (0 leaves the row out)
+	// A bootstrap sample is given as its in-bag counts, so duplicated rows are never copied
+	public void train(BitDataset d, int[] weights){
+		long start = System.nanoTime();
+		splitEvaluations = 0;
+		data = d;
+		rowWeights = weights;
+		coded = d.hasCodedFeatures();
+		histogram = coded ? new int[2 * FeatureBins.MAX_BINS] : null;
+
+		int maxWeight = 0;
+		for(int w : weights)
+			maxWeight = Math.max(maxWeight, w);
+		int numPlanes = 32 - Integer.numberOfLeadingZeros(maxWeight);
+
+		//split weights into bit planes, and let every row with a weight start at the root
+		weightPlanes = new long[numPlanes][data.getNumWords()];
+		long[] rows = new long[data.getNumWords()];
+		for(int row=0; row<weights.length; row++){
+			int weight = weights[row];
+			if(weight == 0)
+				continue;
+			rows[row >>> 6] |= 1L << row;
+			for(int k=0; k<numPlanes; k++){
+				if(((weight >>> k) & 1) != 0)
+					weightPlanes[k][row >>> 6] |= 1L << row;
+			}
+		}
+
+		long[] labels = data.getLabels();
+		int numExamples = 0;
+		int numPos = 0;
+		for(int w=0; w<rows.length; w++){
+			numExamples += weightedCount(rows[w], w);
+			numPos += weightedCount(rows[w] & labels[w], w);
 		}
 		
 		//create the root node of the tree
-		root = new TreeNode(null, pos, neg, numTotalFeatures);
-		root.chooseFeatures(numTotalFeatures, numFeatChoose);
+		root = new TreeNode(rows, numPos, numExamples - numPos, 0);
+		featureOrder = new int[numTotalFeatures];
+		for(int f=0; f<numTotalFeatures; f++)
+			featureOrder[f] = f;
 		
-		//call recursive train()  on the root node
-		train(root);
+		//call recursive train()  on the root node (an empty root has no parent, it falls back to a negative decision)
+		if(levelWise){
+			root.rows = null;
+			trainLevelWise(weights);
+		}
+		else{
+			train(root, false);
+		}
+		data = null; // the tree only needs its split features to classify
+		weightPlanes = null;
+		featureOrder = null;
+		rowWeights = null;
+		histogram = null;
+		trainNanos = System.nanoTime() - start;
+		if(listener != null)
+			listener.treeTrained(new TreeStats(-1, trainNanos, 0, 0, getNumNodes(), getNumLeaves(), getDepth(), splitEvaluations));
+	}
+
+	// Returns the total weight of the rows set in bits, which are rows of word w
+	private int weightedCount(long bits, int w){
+		if(bits == 0)
+			return 0;
+		int count = 0;
+		for(int k=0; k<weightPlanes.length; k++)
+			count += Long.bitCount(bits & weightPlanes[k][w]) << k;
+		return count;
 	}
 	
 	/**
 	 * The recursive train method that builds a tree at TreeNode node
+	 * The row bitset of node is released before returning, so a trained tree keeps only its counts and decisions
 	 * @param node: current node to train
-	 * @param numFeatures: total number of features
+	 * @param parentDecision: majority class of the parent of node, used when node has no examples
+	 */
+	private void train(TreeNode node, boolean parentDecision){
+		int numPos = node.numPos; // positive examples count
+		int numNeg = node.numNeg; // negative examples count
+		
+		if(!isLeafNode(node, parentDecision)){
+			double maxInfoGain = 0; 
+			int bestFeature = -1;
+			int bestThreshold = 0;
+			int[] threshold = new int[1];
+
+			int numCandidates = chooseFeatures(); // select subsample of features to choose split feature from
+			// counts of every candidate, taken in parallel for a big node (null to count each candidate below)
+			boolean parallel = parallelSplitRows > 0 && numPos + numNeg >= parallelSplitRows;
+			int[][] counts = parallel ? countCandidates(node, numCandidates) : null;
+
+			for(int c=0; c<numCandidates; c++){
+				int i = featureOrder[c];
+				double infoGain;
+				if(data.isCoded(i)){
+					if(counts == null)
+						fillHistogram(i, node);
+					infoGain = scoreHistogram(counts != null ? counts[c] : histogram, i, node, threshold);
+				}
+				else{
+					if(counts != null)
+						infoGain = splitGain(counts[c][1], counts[c][0], node);
+					else
+						infoGain = splitGain(i, node);
+					threshold[0] = 0;
+				}
+				// current feature has higher info gain than previous (on a tie the lower feature index wins)
+				if(infoGain > maxInfoGain || (infoGain == maxInfoGain && bestFeature > i)){
+					maxInfoGain = infoGain;
+					bestFeature = i;
+					bestThreshold = threshold[0];
+				}
+			}
+			
+			if(bestFeature != -1){ 
+				node.setSplit(bestFeature, bestThreshold, data.isCategorical(bestFeature));
+				createChildren(node, numTotalFeatures);
+				boolean decision = numPos > numNeg;
+				train(node.trueChild, decision);
+				train(node.falseChild, decision);
+			}
+			else{ // no split feature found which will improve DecisionTree
+				node.isLeaf = true;
+			}
+		}
+		node.rows = null; // training state, not needed to classify
+	}
+
+	/**
+	 * Checks the base cases of training at node: if one applies, node becomes a leaf and gets its decision
+	 * @param node: node to check
+	 * @param parentDecision: majority class of the parent of node, used when node has no examples
+	 * @return true if node is a leaf, false if it should be split
 	 */
-	private void train(TreeNode node){
-		int numPos = node.pos.size(); // positive examples count
-		int numNeg = node.neg.size(); // negative examples count
+	private boolean isLeafNode(TreeNode node, boolean parentDecision){
+		int numPos = node.numPos; // positive examples count
+		int numNeg = node.numNeg; // negative examples count
 		int numExamples = numPos + numNeg;
 		
 		// base case 1
@@ -66,16 +259,7 @@ public class DecisionTree {
 		}
 		// base case 3
 		else if(numExamples == 0){ // no examples
-			int numParentPos = node.parent.pos.size();
-			int numParentNeg = node.parent.neg.size();
-
-			if(numParentPos > numParentNeg){ 
-				node.decision = true;
-			}
-			else{
-				node.decision = false;
-			}
-
+			node.decision = parentDecision;
 			node.isLeaf = true;
 		}
 		// base case 4
@@ -100,69 +284,204 @@ public class DecisionTree {
 
 			node.isLeaf = true;
 		}
-		
 		else{
-			double maxInfoGain = 0; 
-			int bestFeature = -1;
+			return false;
+		}
+		return true;
+	}
 
-			node.chooseFeatures(numTotalFeatures, numFeatChoose); // select subsample of features to choose split feature from
+	/**
+	 * Builds the tree one depth at a time. nodeOf[row] is the node of the current depth that row has reached;
+	 * a single sweep over the rows first moves every row from its node of the previous depth down to the child it
+	 * goes to, then adds it to the split counts of that node for each of its candidate features. With those counts
+	 * every node of the depth picks its split, and its children (with their counts) form the next depth
+	 * @param weights: weight of every training row (0 leaves the row out)
+	 */
+	private void trainLevelWise(int[] weights){
+		int numRows = weights.length;
+		long[] labels = data.getLabels();
+		int[] nodeOf = new int[numRows]; // index of the node of the current depth each row reached, -1 once its node is a leaf
+		for(int row=0; row<numRows; row++)
+			nodeOf[row] = weights[row] > 0 ? 0 : -1;
 
-			for(int i=0; i<numTotalFeatures; i++){
-				if(node.featureUsed(i) != true){ // feature can be used for split feature selection
-					double infoGain =  getEntropy(numPos, numNeg) - getRemainingEntropy(i, node);
-					if(infoGain > maxInfoGain){ // current feature has higher info gain than previous 
-						maxInfoGain = infoGain;
-						bestFeature = i;
-					}
+		ArrayList<TreeNode> level = new ArrayList<TreeNode>();
+		ArrayList<Boolean> parentDecisions = new ArrayList<Boolean>(); // majority class of the parent of each node of level
+		level.add(root);
+		parentDecisions.add(false);
+		int[] childOf = null; // index of the true child (the false child follows it) of each node of the previous depth, -1 for leaves
+		TreeNode[] splitOf = null; // each node of the previous depth, to send its rows down its split
+
+		while(!level.isEmpty()){
+			int numNodes = level.size();
 
+			// nodes of this depth that are split, with their candidate features
+			int[][] candidates = new int[numNodes][];
+			int[][] trueCounts = new int[numNodes][]; // weight of the rows true for each candidate
+			int[][] truePosCounts = new int[numNodes][]; // weight of the positive rows true for each candidate
+			int[][][] histograms = new int[numNodes][][]; // histogram of the codes of each coded candidate (see fillHistogram())
+			boolean anySplit = false;
+			for(int i=0; i<numNodes; i++){
+				if(!isLeafNode(level.get(i), parentDecisions.get(i))){
+					candidates[i] = Arrays.copyOf(featureOrder, chooseFeatures());
+					trueCounts[i] = new int[candidates[i].length];
+					truePosCounts[i] = new int[candidates[i].length];
+					if(data.hasCodedFeatures()){
+						histograms[i] = new int[candidates[i].length][];
+						for(int c=0; c<candidates[i].length; c++){
+							if(data.isCoded(candidates[i][c]))
+								histograms[i][c] = new int[2 * data.getNumBins(candidates[i][c])];
+						}
+					}
+					anySplit = true;
 				}
 			}
-			
-			if(bestFeature != -1){ 
-				node.setSplitFeature(bestFeature);
-				createChildren(node, numTotalFeatures);
-				train(node.trueChild);
-				train(node.falseChild);
+			if(!anySplit)
+				break;
+
+			// one sweep over the rows
+			for(int row=0; row<numRows; row++){
+				int i = nodeOf[row];
+				if(i < 0)
+					continue;
+				if(childOf != null){ // move the row down from its node of the previous depth
+					int c = childOf[i];
+					i = c < 0 ? -1 : (goesTrue(splitOf[i], data, row) ? c : c + 1);
+					nodeOf[row] = i;
+					if(i < 0)
+						continue;
+				}
+				int[] features = candidates[i];
+				if(features == null)
+					continue;
+				int weight = weights[row];
+				boolean positive = (labels[row >>> 6] & (1L << row)) != 0;
+				for(int c=0; c<features.length; c++){
+					if(histograms[i] != null && histograms[i][c] != null){
+						int code = data.getCode(row, features[c]);
+						histograms[i][c][2 * code] += weight;
+						if(positive)
+							histograms[i][c][2 * code + 1] += weight;
+					}
+					else if(data.getFeatureValue(row, features[c])){
+						trueCounts[i][c] += weight;
+						if(positive)
+							truePosCounts[i][c] += weight;
+					}
+				}
 			}
-			else{ // no split feature found which will improve DecisionTree
-				node.isLeaf = true;
+
+			// split every node of this depth and collect the next depth
+			ArrayList<TreeNode> nextLevel = new ArrayList<TreeNode>();
+			ArrayList<Boolean> nextDecisions = new ArrayList<Boolean>();
+			childOf = new int[numNodes];
+			splitOf = level.toArray(new TreeNode[numNodes]);
+			int[] threshold = new int[1];
+			for(int i=0; i<numNodes; i++){
+				childOf[i] = -1;
+				if(candidates[i] == null)
+					continue;
+				TreeNode node = level.get(i);
+				double maxInfoGain = 0;
+				int bestFeature = -1;
+				int best = -1;
+				int bestThreshold = 0;
+				for(int c=0; c<candidates[i].length; c++){
+					int f = candidates[i][c];
+					double infoGain;
+					if(histograms[i] != null && histograms[i][c] != null){
+						infoGain = scoreHistogram(histograms[i][c], f, node, threshold);
+					}
+					else{
+						infoGain = splitGain(truePosCounts[i][c], trueCounts[i][c], node);
+						threshold[0] = 0;
+					}
+					// current feature has higher info gain than previous (on a tie the lower feature index wins)
+					if(infoGain > maxInfoGain || (infoGain == maxInfoGain && bestFeature > f)){
+						maxInfoGain = infoGain;
+						bestFeature = f;
+						best = c;
+						bestThreshold = threshold[0];
+					}
+				}
+
+				if(bestFeature != -1){
+					node.setSplit(bestFeature, bestThreshold, data.isCategorical(bestFeature));
+					if(histograms[i] != null && histograms[i][best] != null){ // counts of the chosen threshold
+						int[] hist = histograms[i][best];
+						for(int code=0; code<hist.length / 2; code++){
+							if(node.goesTrue(code)){
+								trueCounts[i][best] += hist[2 * code];
+								truePosCounts[i][best] += hist[2 * code + 1];
+							}
+						}
+					}
+					int numTruePos = truePosCounts[i][best];
+					int numTrueNeg = trueCounts[i][best] - numTruePos;
+					node.trueChild = new TreeNode(null, numTruePos, numTrueNeg, node.depth + 1);
+					node.falseChild = new TreeNode(null, node.numPos - numTruePos, node.numNeg - numTrueNeg, node.depth + 1);
+					childOf[i] = nextLevel.size();
+					boolean decision = node.numPos > node.numNeg;
+					nextLevel.add(node.trueChild);
+					nextLevel.add(node.falseChild);
+					nextDecisions.add(decision);
+					nextDecisions.add(decision);
+				}
+				else{ // no split feature found which will improve DecisionTree
+					node.isLeaf = true;
+				}
 			}
+			level = nextLevel;
+			parentDecisions = nextDecisions;
 		}
 	}
 	
+	/**
+	 * Randomly chooses the features a node may split on, without allocating anything: a partial Fisher-Yates shuffle
+	 * moves numFeatChoose distinct random features to the front of featureOrder
+	 * @return the number of candidate features (the first entries of featureOrder)
+	 */
+	private int chooseFeatures(){
+		int numCandidates = Math.min(numFeatChoose, numTotalFeatures);
+		for(int i=0; i<numCandidates; i++){
+			int j = i + rand.nextInt(numTotalFeatures - i); // pick one of the features not chosen yet
+			int swap = featureOrder[i];
+			featureOrder[i] = featureOrder[j];
+			featureOrder[j] = swap;
+		}
+		return numCandidates;
+	}
+
 	/**
 	 * Creates the true and false children of TreeNode node
+	 * This is the only place where the rows of a split are materialized: only the true child gets a new bitset,
+	 * the false child takes over the bitset of node (the rows of node are not needed once it is split), so at most
+	 * one bitset per level of the tree is alive at a time besides the one being split
 	 * @param node: node at which to create children
 	 * @param numFeatures: total number of features
 	 */
 	private void createChildren(TreeNode node, int numFeatures){
 
 		int feature = node.getSplitFeature();
+		long[] column = data.getColumn(feature);
+		byte[] codes = data.getCodes(feature); // null for a boolean feature
+		long[] labels = data.getLabels();
+		long[] rows = node.rows;
 
-		ArrayList<Example> trueChildPos = new ArrayList<Example>(); // true for split feature, positive label
-		ArrayList<Example> trueChildNeg = new ArrayList<Example>(); // true for split feature, negative label
-		ArrayList<Example> falseChildPos = new ArrayList<Example>(); // false for split feature, positive label
-		ArrayList<Example> falseChildNeg = new ArrayList<Example>(); // false for split feature, negative label
-
-		for(Example e : node.pos){ // all positive label examples
-			if (e.getFeatureValue(feature)){ // true on split feature 
-				trueChildPos.add(e);
-			}
-			else{ // false on split feature
-				falseChildPos.add(e);
-			}
-		}
-		for(Example e : node.neg){ // all negative label examples
-			if (e.getFeatureValue(feature)){ // true on split feature
-				trueChildNeg.add(e);
-			}
-			else{ // false on split feature 
-				falseChildNeg.add(e);
-			}
+		long[] trueRows = new long[rows.length]; // rows true for split feature
+		int numTrue = 0;
+		int numTruePos = 0;
+		for(int w=0; w<rows.length; w++){
+			long t = codes == null ? rows[w] & column[w] : trueBits(node, codes, rows[w], w);
+			trueRows[w] = t;
+			rows[w] &= ~t; // rows false for split feature, partitioned in place
+			numTrue += weightedCount(t, w);
+			numTruePos += weightedCount(t & labels[w], w);
 		}
+		int numTrueNeg = numTrue - numTruePos;
 
-		TreeNode tChild = new TreeNode(node, trueChildPos, trueChildNeg, numTotalFeatures);
-		TreeNode fChild = new TreeNode(node, falseChildPos, falseChildNeg, numTotalFeatures);
+		TreeNode tChild = new TreeNode(trueRows, numTruePos, numTrueNeg, node.depth + 1);
+		TreeNode fChild = new TreeNode(rows, node.numPos - numTruePos, node.numNeg - numTrueNeg, node.depth + 1);
+		node.rows = null;
 	
 		node.trueChild = tChild;
 		node.falseChild = fChild;
@@ -170,87 +489,215 @@ public class DecisionTree {
 	
 	
 	/**
-	 * Computes and returns the remaining entropy if feature is chosen
-	 * at node.
+	 * Computes and returns the gain of splitting node on a boolean feature
+	 * Counts are taken straight from the bitsets (node rows AND feature column AND label column AND weight plane,
+	 * then popcount), so no example is copied and nothing is allocated
 	 * @param feature: the feature number
-	 * @param node: node at which to find remaining entropy
-	 * @return remaining entropy at node
+	 * @param node: node at which to find the gain
+	 * @return gain of the split, see splitGain(numTruePos, trueChildSize, node)
 	 */
-	private double getRemainingEntropy(int feature, TreeNode node){
-		//System.out.println("Getting Entropy for node: n with feature" + feature + "with numFeatures: " + numFeatures);
-
-		ArrayList<Example> trueChildPos = new ArrayList<Example>(); // true for split feature, positive label
-		ArrayList<Example> trueChildNeg = new ArrayList<Example>(); // true for split feature, negative label
-		ArrayList<Example> falseChildPos = new ArrayList<Example>(); // false for split feature, positive label
-		ArrayList<Example> falseChildNeg = new ArrayList<Example>(); // false for split feature, negative label
+	private double splitGain(int feature, TreeNode node){
+		long[] column = data.getColumn(feature);
+		long[] labels = data.getLabels();
+		long[] rows = node.rows;
 
-		for(Example e : node.pos){ // all positive label examples
-			if (e.getFeatureValue(feature)){ // true on split feature 
-				trueChildPos.add(e);
-			}
-			else{ // false on split feature
-				falseChildPos.add(e);
-			}
+		int trueChildSize = 0;
+		int numTruePos = 0;
+		for(int w=0; w<rows.length; w++){
+			long t = rows[w] & column[w]; // rows of this node that are true for split feature
+			trueChildSize += weightedCount(t, w);
+			numTruePos += weightedCount(t & labels[w], w);
 		}
-		for(Example e : node.neg){ // all negative label examples
-			if (e.getFeatureValue(feature)){ // true on split feature
-				trueChildNeg.add(e);
-			}
-			else{ // false on split feature 
-				falseChildNeg.add(e);
-			}
+		return splitGain(numTruePos, trueChildSize, node);
+	}
+
+	// Returns the rows set in bits (rows of word w) whose code goes to the true child of node
+	private long trueBits(TreeNode node, byte[] codes, long bits, int w){
+		long t = 0;
+		while(bits != 0){
+			int b = Long.numberOfTrailingZeros(bits);
+			if(node.goesTrue(codes[(w << 6) + b] & 0xFF))
+				t |= 1L << b;
+			bits &= bits - 1;
 		}
+		return t;
+	}
 
-		int falseChildSize = falseChildPos.size() + falseChildNeg.size();
-		int trueChildSize = trueChildPos.size() + trueChildNeg.size();
+	/**
+	 * Fills histogram with the weight (at 2 * code) and positive weight (at 2 * code + 1) of the rows of node
+	 * for each code of coded feature
+	 */
+	private void fillHistogram(int feature, TreeNode node){
+		Arrays.fill(histogram, 0, 2 * data.getNumBins(feature), 0);
+		fillHistogram(feature, node.rows, 0, node.rows.length, histogram);
+	}
 
-		double totalChildren = falseChildSize + trueChildSize;
-		
-		double falseEntropy = getEntropy(falseChildPos.size(), falseChildNeg.size());
-		double trueEntropy = getEntropy(trueChildPos.size(), trueChildNeg.size());
-		double remEntropy = (falseChildSize / totalChildren) * falseEntropy + (trueChildSize / totalChildren) * trueEntropy;
-		
-		return remEntropy;		
+	// Adds the rows set in words fromWord (inclusive) to toWord (exclusive) of rows to hist, see fillHistogram(feature, node)
+	private void fillHistogram(int feature, long[] rows, int fromWord, int toWord, int[] hist){
+		byte[] codes = data.getCodes(feature);
+		long[] labels = data.getLabels();
+		for(int w=fromWord; w<toWord; w++){
+			long bits = rows[w];
+			while(bits != 0){
+				int row = (w << 6) + Long.numberOfTrailingZeros(bits);
+				int code = codes[row] & 0xFF;
+				hist[2 * code] += rowWeights[row];
+				if((labels[w] & (1L << row)) != 0)
+					hist[2 * code + 1] += rowWeights[row];
+				bits &= bits - 1;
+			}
+		}
 	}
-	
+
 	/**
-	 * Computes the entropy of a node given the number of positive and negative examples it has
-	 * @param numPos: number of positive examples
-	 * @param numNeg: number of negative examples
-	 * @return - entropy
+	 * Counts the rows of node for each candidate feature (the first numCandidates entries of featureOrder) on the
+	 * fork/join pool. Every candidate is cut into ranges of row words so a node with few candidates still keeps the
+	 * pool busy; each task fills its own counts, which are added up once all tasks are done. The sums are integers,
+	 * so the counts (and the tree) do not depend on how the work was cut
+	 * @return for each candidate: {true weight, true positive weight} for a boolean feature, the histogram of its
+	 * codes (see fillHistogram()) for a coded one
 	 */
-	private double getEntropy(int numPos, int numNeg){ // works as expected
-		double numPosD = numPos;
-		double numNegD = numNeg;
-		double totalNum = numPosD + numNegD; // total number of examples
-		double probPos = numPosD / totalNum; // probability of positive examples
-		double probNeg = numNegD / totalNum; // probability of negative examples
-		double entropy = 0;
-		if(totalNum == 0){ 
-			entropy = 0;
+	private int[][] countCandidates(TreeNode node, int numCandidates){
+		long[] rows = node.rows;
+		ForkJoinPool pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool() : ForkJoinPool.commonPool();
+		int maxRanges = Math.max(1, rows.length / MIN_TASK_WORDS);
+		int numRanges = Math.min(maxRanges, (TASKS_PER_THREAD * pool.getParallelism() + numCandidates - 1) / numCandidates);
+		int rangeWords = (rows.length + numRanges - 1) / numRanges;
+		int[][][] partial = new int[numCandidates][numRanges][];
+
+		ArrayList<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+		for(int c=0; c<numCandidates; c++){
+			for(int r=0; r<numRanges; r++){
+				final int candidate = c;
+				final int range = r;
+				final int feature = featureOrder[c];
+				tasks.add(ForkJoinTask.adapt(() -> {
+					int from = range * rangeWords;
+					int to = Math.min(rows.length, from + rangeWords);
+					partial[candidate][range] = countRange(feature, rows, from, to);
+				}));
+			}
+		}
+		if(ForkJoinTask.inForkJoinPool())
+			ForkJoinTask.invokeAll(tasks); // idle threads of the pool the tree is trained in steal the tasks
+		else
+			pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+
+		int[][] counts = new int[numCandidates][];
+		for(int c=0; c<numCandidates; c++){
+			counts[c] = partial[c][0];
+			for(int r=1; r<numRanges; r++){
+				for(int k=0; k<counts[c].length; k++)
+					counts[c][k] += partial[c][r][k];
+			}
 		}
-		else if(probPos == 0){
-			entropy =  (-1) * (probNeg * log2(probNeg));
+		return counts;
+	}
 
+	// Counts the rows set in words fromWord (inclusive) to toWord (exclusive) of rows for one feature, see countCandidates()
+	private int[] countRange(int feature, long[] rows, int fromWord, int toWord){
+		if(data.isCoded(feature)){
+			int[] hist = new int[2 * data.getNumBins(feature)];
+			fillHistogram(feature, rows, fromWord, toWord, hist);
+			return hist;
+		}
+		long[] column = data.getColumn(feature);
+		long[] labels = data.getLabels();
+		int trueChildSize = 0;
+		int numTruePos = 0;
+		for(int w=fromWord; w<toWord; w++){
+			long t = rows[w] & column[w]; // rows of this node that are true for the feature
+			trueChildSize += weightedCount(t, w);
+			numTruePos += weightedCount(t & labels[w], w);
 		}
-		else if(probNeg == 0){
-			entropy = (-1) * (probPos * log2(probPos));
+		return new int[] {trueChildSize, numTruePos};
+	}
 
+	/**
+	 * Finds the best split of node on a coded feature from the histogram of its codes (see fillHistogram()):
+	 * every threshold of a numeric feature (codes above it go to the true child) or every category of a
+	 * categorical one (that category against the rest)
+	 * @param hist: weight and positive weight of each code
+	 * @param feature: the feature number
+	 * @param node: node being split
+	 * @param threshold: gets the best threshold or category (the lowest one on a tie)
+	 * @return gain of the best split, 0 if no split separates the rows
+	 */
+	private double scoreHistogram(int[] hist, int feature, TreeNode node, int[] threshold){
+		int numBins = data.getNumBins(feature);
+		int nodeSize = node.numPos + node.numNeg;
+		double maxInfoGain = 0;
+		threshold[0] = 0;
+		if(data.isCategorical(feature)){
+			for(int code=0; code<numBins; code++){
+				int trueChildSize = hist[2 * code];
+				if(trueChildSize == 0 || trueChildSize == nodeSize)
+					continue;
+				double infoGain = splitGain(hist[2 * code + 1], trueChildSize, node);
+				if(infoGain > maxInfoGain){
+					maxInfoGain = infoGain;
+					threshold[0] = code;
+				}
 			}
+		}
 		else{
-			entropy = ((-1) * (probPos * log2(probPos))) - (probNeg * log2(probNeg));
+			int falseSize = 0; // weight of the codes up to the threshold
+			int falsePos = 0;
+			for(int code=0; code<numBins - 1; code++){
+				falseSize += hist[2 * code];
+				falsePos += hist[2 * code + 1];
+				if(falseSize == 0)
+					continue;
+				if(falseSize == nodeSize)
+					break;
+				double infoGain = splitGain(node.numPos - falsePos, nodeSize - falseSize, node);
+				if(infoGain > maxInfoGain){
+					maxInfoGain = infoGain;
+					threshold[0] = code;
+				}
+			}
 		}
-		
-		return entropy;
+		return maxInfoGain;
 	}
-	
-	/**	
-	 * Computes log_2(d) (To be used by the getEntropy() method)
-	 * @param d - value
-	 * @return log_2(d)
+
+	/**
+	 * Computes the gain of splitting node into a true child with trueChildSize examples, numTruePos of them positive,
+	 * and a false child with the rest of the examples of node: the impurity of node minus the impurity of the children
+	 * weighted by their size. Multiplied out by the size of node, both criteria only need integer counts:
+	 * entropy: size * H(p, q) = n log2 n - p log2 p - q log2 q (n = p + q), so n log2 n comes from a table
+	 * Gini: size * (1 - Gini(p, q)) = (p^2 + q^2) / n
+	 * @return gain of the split (0 when a child is empty)
 	 */
-	private double log2(double d){
-		return Math.log(d)/Math.log(2);
+	private double splitGain(int numTruePos, int trueChildSize, TreeNode node){
+		splitEvaluations++;
+		int numTrueNeg = trueChildSize - numTruePos; // true for split feature, negative label
+		int numFalsePos = node.numPos - numTruePos; // false for split feature, positive label
+		int numFalseNeg = node.numNeg - numTrueNeg; // false for split feature, negative label
+		double nodeSize = node.numPos + node.numNeg;
+
+		if(criterion == SplitCriterion.GINI)
+			return (giniTerm(numTruePos, numTrueNeg) + giniTerm(numFalsePos, numFalseNeg) - giniTerm(node.numPos, node.numNeg)) / nodeSize;
+		return (entropyTerm(node.numPos, node.numNeg) - entropyTerm(numTruePos, numTrueNeg) - entropyTerm(numFalsePos, numFalseNeg)) / nodeSize;
+	}
+
+	// Entropy of a node with numPos positive and numNeg negative examples, times its number of examples
+	private static double entropyTerm(int numPos, int numNeg){
+		return nLog2n(numPos + numNeg) - nLog2n(numPos) - nLog2n(numNeg);
+	}
+
+	// One minus the Gini impurity of a node with numPos positive and numNeg negative examples, times its number of examples
+	private static double giniTerm(int numPos, int numNeg){
+		int total = numPos + numNeg;
+		if(total == 0)
+			return 0;
+		return ((double) numPos * numPos + (double) numNeg * numNeg) / total;
+	}
+
+	// n log2 n (0 for n = 0), from the table for all but the largest nodes
+	static double nLog2n(int n){
+		if(n < NLOG2N_TABLE_SIZE)
+			return NLOG2N[n];
+		return n * (Math.log(n) / Math.log(2));
 	}
 	
 	/** 
@@ -259,12 +706,14 @@ public class DecisionTree {
 	 * @return true if e is predicted to be  positive,  false otherwise
 	 */
 	public boolean classify(Example e){
+		if(coded && !e.hasCodes())
+			throw new IllegalStateException("the tree was trained on numeric or categorical features, set their codes on the example");
 		TreeNode currNode = root;
 		int currFeature = 0;
 
 		while(currNode.isLeaf == false){ 
 			currFeature = currNode.getSplitFeature();
-			boolean split = e.getFeatureValue(currFeature);
+			boolean split = currNode.goesTrue(e.getCode(currFeature));
 			if(split){ //child evaluates to true
 				currNode = currNode.trueChild;
 			}
@@ -275,10 +724,81 @@ public class DecisionTree {
 
 		return currNode.decision;
 	}
+
+	/**
+	 * Classifies one row of a columnar dataset using the learned decision tree
+	 * @param d: dataset holding the example
+	 * @param row: row of the example in d
+	 * @return true if the example is predicted to be positive, false otherwise
+	 */
+	public boolean classify(BitDataset d, int row){
+		TreeNode currNode = root;
+
+		while(currNode.isLeaf == false){
+			if(goesTrue(currNode, d, row)){ //child evaluates to true
+				currNode = currNode.trueChild;
+			}
+			else{ // child evaluates to false
+				currNode = currNode.falseChild;
+			}
+		}
+
+		return currNode.decision;
+	}
 	
 	
 	
 	
+	// Returns whether row of d goes to the true child of node
+	private static boolean goesTrue(TreeNode node, BitDataset d, int row){
+		return node.goesTrue(d.getCode(row, node.getSplitFeature()));
+	}
+
+	// returns the time the last train() took, in nanoseconds
+	public long getTrainNanos(){
+		return trainNanos;
+	}
+
+	// returns the number of candidate splits (feature, threshold) scored by the last train()
+	public long getSplitEvaluations(){
+		return splitEvaluations;
+	}
+
+	// returns the number of nodes of the learned tree
+	public int getNumNodes(){
+		return countNodes(root, false);
+	}
+
+	// returns the number of leaves of the learned tree
+	public int getNumLeaves(){
+		return countNodes(root, true);
+	}
+
+	// Counts the nodes (or only the leaves) reachable from node
+	private static int countNodes(TreeNode node, boolean leavesOnly){
+		if(node == null)
+			return 0;
+		if(node.isLeaf)
+			return 1;
+		return (leavesOnly ? 0 : 1) + countNodes(node.trueChild, leavesOnly) + countNodes(node.falseChild, leavesOnly);
+	}
+
+	// returns the depth of the deepest leaf of the learned tree (0 when the root is a leaf)
+	public int getDepth(){
+		return depth(root);
+	}
+
+	private static int depth(TreeNode node){
+		if(node == null || node.isLeaf)
+			return 0;
+		return 1 + Math.max(depth(node.trueChild), depth(node.falseChild));
+	}
+
+	// returns the root of the learned tree (null before training)
+	TreeNode getRoot(){
+		return root;
+	}
+	
 	//----------DO NOT MODIFY CODE BELOW------------------
 	public void print(){
 		printTree(root, 0);
@@ -3,12 +3,14 @@
  * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
  * 
  * Example object represents a single observation (containing multiple features and one label as positive or negative) from a dataset
+ * Numeric and categorical features are held as their codes (see FeatureBins), set with setCode()
  */
 
 public class Example {
     private final int numFeatures; //the number of features 
     private boolean[] values; // the values of each feature in this example   
     private boolean label; //set to true for positive, false for negatives
+    private byte[] codes; // code of every feature (the bit for boolean features), null until a code is set
 
 
     // Constructor
@@ -26,6 +28,31 @@ public class Example {
     // Set a feature value.
     public void setFeatureValue(int feature, boolean value) {
     	values[feature] = value;
+    	if (codes != null)
+    		codes[feature] = (byte) (value ? 1 : 0);
+    }
+
+    // Set the code of a numeric or categorical feature (0 to FeatureBins.MAX_BINS - 1)
+    public void setCode(int feature, int code) {
+    	if (code < 0 || code >= FeatureBins.MAX_BINS)
+    		throw new IllegalArgumentException("code " + code + " is not between 0 and " + (FeatureBins.MAX_BINS - 1));
+    	if (codes == null){
+    		codes = new byte[numFeatures];
+    		for (int f=0; f<numFeatures; f++)
+    			codes[f] = (byte) (values[f] ? 1 : 0);
+    	}
+    	codes[feature] = (byte) code;
+    	values[feature] = code != 0;
+    }
+
+    // Access the code of a feature (the bit, 0 or 1, for a boolean feature)
+    public int getCode(int feature) {
+    	return codes != null ? codes[feature] & 0xFF : (values[feature] ? 1 : 0);
+    }
+
+    // returns whether any code has been set on this example
+    public boolean hasCodes() {
+    	return codes != null;
     }
 
     // Access a feature value.
@@ -0,0 +1,501 @@
+/***
+ * Name of File: FeatureBins
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * FeatureBins describes how the values of every feature are turned into small integer codes (at most MAX_BINS, so a
+ * code fits in one byte). Boolean features (TRUE/FALSE) stay bits. Numeric features are cut into quantile bins once
+ * per dataset: code k holds the values up to edges[k]. Categorical features give every category seen in the training
+ * data its own code, plus one last code for any other category.
+ * Trees split numeric features on "code > threshold" and categorical ones on "code == category", so a node scores all
+ * thresholds of a feature from one histogram of its codes instead of sorting its rows.
+ * The bins fitted on the training data must be used to read any data the forest scores (see readTable())
+ */
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class FeatureBins {
+
+    static final int MAX_BINS = 256; // codes are stored as one unsigned byte
+    static final byte BOOLEAN = 0;
+    static final byte NUMERIC = 1;
+    static final byte CATEGORICAL = 2;
+
+    private final byte[] kinds; // kind of every feature
+    private final double[][] edges; // upper edge of every bin of each numeric feature (null for other kinds)
+    private final String[][] categories; // categories of each categorical feature, in code order (null for other kinds)
+    private final List<Map<String, Integer>> categoryCodes; // code of each category of each categorical feature (null for other kinds)
+
+    // Constructor, wraps the bins of every feature
+    FeatureBins(byte[] k, double[][] e, String[][] c) {
+        kinds = k;
+        edges = e;
+        categories = c;
+        categoryCodes = new ArrayList<Map<String, Integer>>(k.length);
+        for (int f=0; f<k.length; f++){
+            HashMap<String, Integer> codes = null;
+            if (k[f] == CATEGORICAL){
+                codes = new HashMap<String, Integer>();
+                for (int code=0; code<c[f].length; code++)
+                    codes.put(c[f][code], code);
+            }
+            categoryCodes.add(codes);
+        }
+    }
+
+    // Returns the kind of feature f (BOOLEAN, NUMERIC or CATEGORICAL)
+    public byte getKind(int f) {
+        return kinds[f];
+    }
+
+    // Returns whether feature f is stored as byte codes rather than bits
+    public boolean isCoded(int f) {
+        return kinds[f] != BOOLEAN;
+    }
+
+    // Returns whether any feature is stored as byte codes
+    public boolean hasCodedFeatures() {
+        for (byte kind : kinds){
+            if (kind != BOOLEAN)
+                return true;
+        }
+        return false;
+    }
+
+    // Returns the number of codes of feature f (2 for boolean features)
+    public int getNumBins(int f) {
+        switch (kinds[f]){
+            case NUMERIC: return edges[f].length;
+            case CATEGORICAL: return categories[f].length + 1; // the last code is for categories not seen in training
+            default: return 2;
+        }
+    }
+
+    public int getNumFeatures() {
+        return kinds.length;
+    }
+
+    // Returns the code of a numeric value of feature f: the first bin whose upper edge is at least value
+    // (values above the largest training value go to the last bin)
+    public int encode(int f, double value) {
+        if (kinds[f] != NUMERIC)
+            throw new IllegalArgumentException("feature " + f + " is not numeric");
+        double[] e = edges[f];
+        int low = 0;
+        int high = e.length - 1;
+        while (low < high){
+            int mid = (low + high) >>> 1;
+            if (value <= e[mid])
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        return low;
+    }
+
+    // Returns the code of a cell of feature f as written in a data file
+    public int encode(int f, String cell) {
+        switch (kinds[f]){
+            case NUMERIC:
+                return encode(f, Double.parseDouble(cell)); // NumberFormatException is an IllegalArgumentException
+            case CATEGORICAL:
+                Integer code = categoryCodes.get(f).get(cell);
+                return code != null ? code : categories[f].length;
+            default:
+                if (cell.equalsIgnoreCase("TRUE"))
+                    return 1;
+                if (cell.equalsIgnoreCase("FALSE"))
+                    return 0;
+                throw new IllegalArgumentException("expected TRUE or FALSE, not " + cell);
+        }
+    }
+
+    // Returns whether a and b code every feature the same way (null stands for all features boolean)
+    public static boolean sameCoding(FeatureBins a, FeatureBins b) {
+        if (a == b)
+            return true;
+        if (a == null || b == null)
+            return !(a == null ? b : a).hasCodedFeatures();
+        return Arrays.equals(a.kinds, b.kinds) && Arrays.deepEquals(a.edges, b.edges) && Arrays.deepEquals(a.categories, b.categories);
+    }
+
+    // Describes the values of code of feature f, e.g. "<= 3.5" or "= red"
+    public String describe(int f, int code) {
+        switch (kinds[f]){
+            case NUMERIC: return "<= " + edges[f][code];
+            case CATEGORICAL: return code < categories[f].length ? "= " + categories[f][code] : "= (other)";
+            default: return code != 0 ? "TRUE" : "FALSE";
+        }
+    }
+
+    /**
+     * Fits bins to the cells of a table (cells[row][f]): a feature whose cells are all TRUE/FALSE stays boolean,
+     * one whose cells all parse as numbers is numeric with up to maxBins quantile bins, anything else is categorical
+     * with up to maxBins - 1 categories (less frequent categories beyond that share the last code)
+     */
+    public static FeatureBins fit(List<String[]> cells, int numFeatures, int maxBins) {
+        Fitter fitter = new Fitter(numFeatures, maxBins);
+        for (String[] row : cells)
+            fitter.add(row);
+        if (fitter.needsRecount()){
+            for (String[] row : cells)
+                fitter.recount(row);
+        }
+        return fitter.finish();
+    }
+
+    // Collects what fit() needs one row at a time, so a file can be fitted without holding its cells: the kind of
+    // every feature, a sample of the values of numeric features (every value while there are at most maxBins
+    // distinct ones) and the count of every category
+    private static class Fitter {
+        static final int SAMPLE_SIZE = 1 << 16; // values per numeric feature the quantile edges are taken from
+        static final int MAX_NUMERIC_COUNTS = 1 << 12; // distinct cells counted for a feature that still looks numeric
+
+        final int numFeatures;
+        final int maxBins;
+        final boolean[] isBoolean;
+        final boolean[] isNumeric;
+        final double[][] sample; // reservoir sample of the values of every feature while it looks numeric
+        final List<TreeSet<Double>> distinct; // distinct values while there are at most maxBins of them, else null
+        final List<HashMap<String, Integer>> counts; // count of every cell, null once a numeric feature has too many distinct cells
+        final boolean[] recount; // features that turned out categorical after their counts were dropped
+        final Random rand = new Random(1); // fixed seed, so fitting the same file twice gives the same bins
+        long numRows = 0;
+
+        Fitter(int features, int bins) {
+            if (bins < 2 || bins > MAX_BINS)
+                throw new IllegalArgumentException("maxBins must be between 2 and " + MAX_BINS);
+            numFeatures = features;
+            maxBins = bins;
+            isBoolean = new boolean[features];
+            isNumeric = new boolean[features];
+            sample = new double[features][];
+            distinct = new ArrayList<TreeSet<Double>>(features);
+            counts = new ArrayList<HashMap<String, Integer>>(features);
+            recount = new boolean[features];
+            for (int f=0; f<features; f++){
+                isBoolean[f] = true;
+                isNumeric[f] = true;
+                sample[f] = new double[16];
+                distinct.add(new TreeSet<Double>());
+                counts.add(new HashMap<String, Integer>());
+            }
+        }
+
+        // Adds the cells of one row
+        void add(String[] cells) {
+            int slot = numRows < SAMPLE_SIZE ? (int) numRows : (int) (rand.nextDouble() * (numRows + 1)); // reservoir sampling
+            numRows++;
+            for (int f=0; f<numFeatures; f++){
+                String cell = cells[f];
+                if (isBoolean[f] && !cell.equalsIgnoreCase("TRUE") && !cell.equalsIgnoreCase("FALSE"))
+                    isBoolean[f] = false;
+                if (isNumeric[f]){
+                    double value;
+                    try {
+                        value = Double.parseDouble(cell);
+                    }
+                    catch (NumberFormatException e) {
+                        value = Double.NaN;
+                    }
+                    if (Double.isNaN(value)){
+                        isNumeric[f] = false;
+                        sample[f] = null;
+                        distinct.set(f, null);
+                        if (counts.get(f) == null)
+                            recount[f] = true;
+                    }
+                    else{
+                        if (slot < SAMPLE_SIZE){
+                            if (slot >= sample[f].length)
+                                sample[f] = Arrays.copyOf(sample[f], Math.min(SAMPLE_SIZE, 2 * sample[f].length));
+                            sample[f][slot] = value;
+                        }
+                        if (distinct.get(f) != null && distinct.get(f).add(value) && distinct.get(f).size() > maxBins)
+                            distinct.set(f, null);
+                    }
+                }
+                if (counts.get(f) != null){
+                    counts.get(f).merge(cell, 1, Integer::sum);
+                    if (isNumeric[f] && counts.get(f).size() > MAX_NUMERIC_COUNTS)
+                        counts.set(f, null); // most likely a real numeric feature, its cells are not needed
+                }
+            }
+        }
+
+        // Returns whether the category counts of some features have to be taken again (see recount())
+        boolean needsRecount() {
+            for (boolean r : recount){
+                if (r)
+                    return true;
+            }
+            return false;
+        }
+
+        // Counts the cells of one row again, for the features whose counts were dropped (call for every row after add())
+        void recount(String[] cells) {
+            for (int f=0; f<numFeatures; f++){
+                if (recount[f]){
+                    if (counts.get(f) == null)
+                        counts.set(f, new HashMap<String, Integer>());
+                    counts.get(f).merge(cells[f], 1, Integer::sum);
+                }
+            }
+        }
+
+        FeatureBins finish() {
+            byte[] kinds = new byte[numFeatures];
+            double[][] edges = new double[numFeatures][];
+            String[][] categories = new String[numFeatures][];
+            for (int f=0; f<numFeatures; f++){
+                if (isBoolean[f]){
+                    kinds[f] = BOOLEAN;
+                }
+                else if (isNumeric[f]){
+                    kinds[f] = NUMERIC;
+                    if (distinct.get(f) != null){ // one bin per value
+                        edges[f] = new double[distinct.get(f).size()];
+                        int k = 0;
+                        for (double value : distinct.get(f))
+                            edges[f][k++] = value;
+                    }
+                    else
+                        edges[f] = quantileEdges(Arrays.copyOf(sample[f], (int) Math.min(numRows, SAMPLE_SIZE)), maxBins);
+                }
+                else{
+                    kinds[f] = CATEGORICAL;
+                    HashMap<String, Integer> c = counts.get(f);
+                    ArrayList<String> names = new ArrayList<String>(c.keySet());
+                    // most frequent first (then by name, so the codes do not depend on hash order)
+                    names.sort((a, b) -> c.get(a).equals(c.get(b)) ? a.compareTo(b) : c.get(b) - c.get(a));
+                    categories[f] = names.subList(0, Math.min(names.size(), maxBins - 1)).toArray(new String[0]);
+                }
+            }
+            return new FeatureBins(kinds, edges, categories);
+        }
+    }
+
+    // Upper edges of at most maxBins bins holding about the same number of values (one bin per value when there are
+    // few distinct values)
+    private static double[] quantileEdges(double[] values, int maxBins) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int n = sorted.length;
+        double[] e = new double[Math.min(n, maxBins)];
+        int numEdges = 0;
+        int numDistinct = 0;
+        for (int i=0; i<n; i++){
+            if (i == 0 || sorted[i] != sorted[i - 1])
+                numDistinct++;
+        }
+        if (numDistinct <= maxBins){
+            for (int i=0; i<n; i++){
+                if (i == 0 || sorted[i] != sorted[i - 1])
+                    e[numEdges++] = sorted[i];
+            }
+        }
+        else{
+            for (int k=0; k<maxBins; k++){
+                double edge = sorted[Math.max(0, (int) ((long) (k + 1) * n / maxBins) - 1)];
+                if (numEdges == 0 || edge > e[numEdges - 1])
+                    e[numEdges++] = edge;
+            }
+        }
+        if (numEdges == 0) // no rows at all
+            return new double[] {0};
+        return Arrays.copyOf(e, numEdges);
+    }
+
+    // What readTable() does with each example line of a file
+    private interface RowHandler {
+        void row(String[] cells, boolean positive, int lineNumber) throws IOException;
+    }
+
+    // Reads the example lines of a tab separated data file (after its header) and hands each one to handler
+    // with its label and its line number in the file
+    private static void forEachRow(String file, int numFeatures, RowHandler handler) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)){
+            in.readLine(); // header
+            int lineNumber = 1;
+            String line;
+            while ((line = in.readLine()) != null){
+                lineNumber++;
+                if (line.isEmpty())
+                    continue;
+                String[] row = line.split("\t", -1);
+                if (row.length != numFeatures + 1)
+                    throw new DatasetFormatException(file, lineNumber, "expected " + (numFeatures + 1) + " values but found " + row.length);
+                boolean positive = row[0].equalsIgnoreCase("positive");
+                if (!positive && !row[0].equalsIgnoreCase("negative"))
+                    throw new DatasetFormatException(file, lineNumber, "expected positive or negative but found \"" + row[0] + "\"");
+                handler.row(Arrays.copyOfRange(row, 1, row.length), positive, lineNumber);
+            }
+        }
+    }
+
+    /**
+     * Reads a tab separated data file whose cells may be numbers or category names as well as TRUE/FALSE
+     * (a header line, then a positive/negative label and the feature cells on every line). The file is read twice
+     * when the bins are fitted to it (once to fit, once to code), and the cells are never held: rows go straight
+     * into columns, DatasetReader.DEFAULT_CHUNK_ROWS rows at a time
+     * @param bins: bins to code the cells with (those of the training data), or null to fit them to this file
+     * @return the data, with numeric and categorical features stored as byte codes
+     */
+    public static BitDataset readTable(String file, FeatureBins bins) throws IOException {
+        String[] names;
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)){
+            String header = in.readLine();
+            if (header == null)
+                throw new DatasetFormatException(file, 1, "missing header line");
+            String[] columns = header.split("\t");
+            names = Arrays.copyOfRange(columns, 1, columns.length);
+        }
+        int numFeatures = names.length;
+
+        if (bins == null){
+            Fitter fitter = new Fitter(numFeatures, MAX_BINS);
+            forEachRow(file, numFeatures, (cells, positive, lineNumber) -> fitter.add(cells));
+            if (fitter.needsRecount())
+                forEachRow(file, numFeatures, (cells, positive, lineNumber) -> fitter.recount(cells));
+            bins = fitter.finish();
+        }
+        else if (bins.getNumFeatures() != numFeatures)
+            throw new DatasetFormatException(file, 1, "file has " + numFeatures + " features but the bins are for " + bins.getNumFeatures());
+
+        FeatureBins b = bins;
+        ArrayList<BitDataset> chunks = new ArrayList<BitDataset>();
+        int chunkRows = DatasetReader.DEFAULT_CHUNK_ROWS;
+        int[] row = {chunkRows}; // row of the current chunk the next line goes to
+        forEachRow(file, numFeatures, (cells, positive, lineNumber) -> {
+            if (row[0] == chunkRows){
+                BitDataset chunk = new BitDataset(chunkRows, numFeatures);
+                chunk.setBins(b);
+                chunks.add(chunk);
+                row[0] = 0;
+            }
+            BitDataset chunk = chunks.get(chunks.size() - 1);
+            for (int f=0; f<numFeatures; f++){
+                try {
+                    int code = b.encode(f, cells[f]);
+                    if (b.isCoded(f))
+                        chunk.setCode(row[0], f, code);
+                    else if (code != 0)
+                        chunk.setFeatureValue(row[0], f, true);
+                }
+                catch (IllegalArgumentException e) {
+                    throw new DatasetFormatException(file, lineNumber, names[f] + ": " + e.getMessage());
+                }
+            }
+            chunk.setLabel(row[0]++, positive);
+        });
+        if (!chunks.isEmpty() && row[0] < chunkRows)
+            chunks.set(chunks.size() - 1, chunks.get(chunks.size() - 1).head(row[0]));
+
+        BitDataset data;
+        if (chunks.isEmpty()){ // no examples
+            data = new BitDataset(0, numFeatures);
+            data.setBins(bins);
+        }
+        else
+            data = chunks.size() == 1 ? chunks.get(0) : BitDataset.concat(chunks, numFeatures);
+        data.setFeatureNames(names);
+        return data;
+    }
+
+    // Returns whether the first example line of a text data file has a cell that is not TRUE/FALSE. Such files are
+    // read with readTable() right away; a cell further down is found by the boolean reader, see DatasetReader.read()
+    public static boolean hasNonBooleanCells(String file) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)){
+            if (in.readLine() == null)
+                return false;
+            String line = in.readLine();
+            while (line != null && line.isEmpty())
+                line = in.readLine();
+            if (line == null)
+                return false;
+            String[] row = line.split("\t");
+            for (int i=1; i<row.length; i++){
+                if (!row[i].equalsIgnoreCase("TRUE") && !row[i].equalsIgnoreCase("FALSE"))
+                    return true;
+            }
+            return false;
+        }
+        catch (MalformedInputException e) { // not text, let the normal reader report it
+            return false;
+        }
+    }
+
+    // Number of bytes write() needs
+    int byteSize() {
+        int size = 4 + kinds.length;
+        for (int f=0; f<kinds.length; f++){
+            if (kinds[f] == NUMERIC)
+                size += 4 + 8 * edges[f].length;
+            else if (kinds[f] == CATEGORICAL){
+                size += 4;
+                for (String c : categories[f])
+                    size += 4 + c.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        return size;
+    }
+
+    // Writes the bins to buffer: number of features, then per feature its kind and its edges or categories
+    void write(ByteBuffer buffer) {
+        buffer.putInt(kinds.length);
+        for (int f=0; f<kinds.length; f++){
+            buffer.put(kinds[f]);
+            if (kinds[f] == NUMERIC){
+                buffer.putInt(edges[f].length);
+                for (double edge : edges[f])
+                    buffer.putDouble(edge);
+            }
+            else if (kinds[f] == CATEGORICAL){
+                buffer.putInt(categories[f].length);
+                for (String c : categories[f]){
+                    byte[] bytes = c.getBytes(StandardCharsets.UTF_8);
+                    buffer.putInt(bytes.length).put(bytes);
+                }
+            }
+        }
+    }
+
+    // Reads bins written by write(); a count larger than the rest of buffer can hold throws BufferUnderflowException
+    // before anything is allocated for it, so corrupt bins cannot exhaust the heap
+    static FeatureBins read(ByteBuffer buffer) {
+        int numFeatures = count(buffer, 1);
+        byte[] kinds = new byte[numFeatures];
+        double[][] edges = new double[numFeatures][];
+        String[][] categories = new String[numFeatures][];
+        for (int f=0; f<numFeatures; f++){
+            kinds[f] = buffer.get();
+            if (kinds[f] == NUMERIC){
+                edges[f] = new double[count(buffer, 8)];
+                for (int k=0; k<edges[f].length; k++)
+                    edges[f][k] = buffer.getDouble();
+            }
+            else if (kinds[f] == CATEGORICAL){
+                categories[f] = new String[count(buffer, 4)];
+                for (int k=0; k<categories[f].length; k++){
+                    byte[] bytes = new byte[count(buffer, 1)];
+                    buffer.get(bytes);
+                    categories[f][k] = new String(bytes, StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return new FeatureBins(kinds, edges, categories);
+    }
+
+    // Reads a count of items that take at least bytesEach bytes each in the rest of buffer
+    private static int count(ByteBuffer buffer, int bytesEach) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / bytesEach)
+            throw new BufferUnderflowException();
+        return count;
+    }
+}
@@ -0,0 +1,159 @@
+/***
+ * Name of File: ForestCoordinator
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * ForestCoordinator hands out the trees of a forest to ForestWorker processes and collects the trained trees
+ * (used by RandomForest.trainForest(workers, dataFile)). The tree indices are cut into ranges a few times smaller
+ * than an even share, and every worker takes the next range as soon as it finishes one, so faster workers train
+ * more trees. If a worker fails, or sends nothing for longer than the read timeout, the trees it did not deliver go
+ * back to the other workers
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ForestCoordinator {
+
+    static final int RANGES_PER_WORKER = 4; // tree ranges per worker, more ranges balance uneven workers better
+    static final int CONNECT_TIMEOUT_MS = 10000;
+    static final int READ_TIMEOUT_MS = 600000; // longest a worker may take to load the data or train one tree
+
+    private final String dataFile;
+    private final long seed;
+    private final int maxNumFeatures;
+    private final int maxTreeDepth;
+    private final int minSamplesSplit;
+    private final boolean levelWise;
+    private final DecisionTree.SplitCriterion criterion;
+    private final int parallelSplitRows;
+    private int readTimeoutMs = READ_TIMEOUT_MS;
+
+    // Constructor, takes the parameters every worker trains its trees with
+    public ForestCoordinator(String file, long s, int maxNumFeat, int treeDepth, int minSamp, boolean level,
+                             DecisionTree.SplitCriterion c, int parallelSplit) {
+        dataFile = file;
+        seed = s;
+        maxNumFeatures = maxNumFeat;
+        maxTreeDepth = treeDepth;
+        minSamplesSplit = minSamp;
+        levelWise = level;
+        criterion = c;
+        parallelSplitRows = parallelSplit;
+    }
+
+    // Sets how long a worker may send nothing before it counts as failed (0 waits forever)
+    public void setReadTimeout(int millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("read timeout must be at least 0");
+        readTimeoutMs = millis;
+    }
+
+    /**
+     * Has the workers train trees firstTree .. firstTree + numTrees - 1 and returns them in tree index order
+     * numRows and numFeatures are the size of the data the coordinator has; a worker whose copy of the data file
+     * has a different size is not used
+     */
+    RandomForest.TreeResult[] train(List<InetSocketAddress> workers, int firstTree, int numTrees, int numRows, int numFeatures) {
+        if (workers.isEmpty())
+            throw new IllegalArgumentException("no workers given");
+        RandomForest.TreeResult[] results = new RandomForest.TreeResult[numTrees];
+        ConcurrentLinkedQueue<int[]> ranges = new ConcurrentLinkedQueue<int[]>(); // {first tree, number of trees}
+        int rangeSize = Math.max(1, numTrees / (workers.size() * RANGES_PER_WORKER));
+        for (int first=0; first<numTrees; first+=rangeSize)
+            ranges.add(new int[] {firstTree + first, Math.min(rangeSize, numTrees - first)});
+
+        // every round runs the live workers until no range is left; ranges a failed worker gives back after the
+        // others have stopped are trained in the next round
+        List<InetSocketAddress> live = new ArrayList<InetSocketAddress>(workers);
+        List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        while (!ranges.isEmpty()){
+            if (live.isEmpty())
+                throw new IllegalStateException("all workers failed: " + String.join("; ", errors));
+            ExecutorService threads = Executors.newFixedThreadPool(live.size());
+            ArrayList<Future<Boolean>> alive = new ArrayList<Future<Boolean>>();
+            for (InetSocketAddress worker : live)
+                alive.add(threads.submit(() -> runWorker(worker, ranges, results, firstTree, numRows, numFeatures, errors)));
+            List<InetSocketAddress> stillLive = new ArrayList<InetSocketAddress>();
+            try {
+                for (int i=0; i<live.size(); i++){
+                    if (alive.get(i).get())
+                        stillLive.add(live.get(i));
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while training forest", e);
+            }
+            catch (ExecutionException e) {
+                throw new IllegalStateException("coordinator failed", e.getCause());
+            }
+            finally {
+                threads.shutdownNow();
+            }
+            live = stillLive;
+        }
+        return results;
+    }
+
+    // Sends ranges to one worker until none are left. Returns false (after giving back the trees it did not deliver)
+    // if the worker failed
+    // (results[i] receives tree firstTree + i)
+    private boolean runWorker(InetSocketAddress worker, ConcurrentLinkedQueue<int[]> ranges, RandomForest.TreeResult[] results, int firstTree,
+                              int numRows, int numFeatures, List<String> errors) {
+        int[] range = null;
+        int delivered = 0; // trees of range already received
+        try (Socket socket = new Socket()){
+            socket.connect(worker, CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(readTimeoutMs); // a hung worker fails with SocketTimeoutException and its trees go back
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            out.writeInt(ForestWorker.MAGIC);
+            out.writeInt(ForestWorker.VERSION);
+
+            while ((range = ranges.poll()) != null){
+                delivered = 0;
+                out.writeUTF(dataFile);
+                out.writeLong(seed);
+                out.writeInt(range[0]);
+                out.writeInt(range[1]);
+                out.writeInt(maxNumFeatures);
+                out.writeInt(maxTreeDepth);
+                out.writeInt(minSamplesSplit);
+                out.writeBoolean(levelWise);
+                out.writeUTF(criterion.name());
+                out.writeInt(parallelSplitRows);
+                out.flush();
+
+                int rows = in.readInt();
+                if (rows == ForestWorker.FAILED)
+                    throw new IOException(in.readUTF());
+                int features = in.readInt();
+                if (rows != numRows || features != numFeatures)
+                    throw new IOException(dataFile + " has " + rows + " rows and " + features + " features on the worker, not " + numRows + " and " + numFeatures);
+
+                int index;
+                while ((index = in.readInt()) != ForestWorker.END_OF_JOB){
+                    if (index == ForestWorker.FAILED)
+                        throw new IOException(in.readUTF());
+                    if (index != range[0] + delivered)
+                        throw new IOException("expected tree " + (range[0] + delivered) + " but got tree " + index);
+                    results[index - firstTree] = ForestWorker.readTree(in, index, numRows, numFeatures);
+                    delivered++;
+                }
+                range = null;
+            }
+            out.writeUTF(""); // no more jobs
+            out.flush();
+            return true;
+        }
+        catch (IOException | RuntimeException e) {
+            errors.add(worker + ": " + e.getMessage());
+            if (range != null && delivered < range[1])
+                ranges.add(new int[] {range[0] + delivered, range[1] - delivered});
+            return false;
+        }
+    }
+}
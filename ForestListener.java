@@ -0,0 +1,28 @@
+/***
+ * Name of File: ForestListener
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * ForestListener is told about training and scoring work as it happens (see RandomForest.addListener() and
+ * DecisionTree.setListener()); ForestMetrics is the listener that keeps totals and histograms and publishes them over
+ * JMX. Every method does nothing by default. Calls come from the training and scoring threads, so a listener must be
+ * thread-safe and quick
+ */
+
+public interface ForestListener {
+
+    // A tree was trained (for a forest: once the tree has been added to the forest, in tree index order)
+    default void treeTrained(TreeStats stats) {
+    }
+
+    // A forest finished training numTrees trees in nanos nanoseconds (also after RandomForest.update())
+    default void forestTrained(int numTrees, long nanos) {
+    }
+
+    // numRows rows were scored in one batch call in nanos nanoseconds
+    default void batchScored(int numRows, long nanos) {
+    }
+
+    // numRows rows of data were loaded from source in nanos nanoseconds
+    default void dataLoaded(String source, int numRows, long nanos) {
+    }
+}
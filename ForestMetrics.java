@@ -0,0 +1,277 @@
+/***
+ * Name of File: ForestMetrics
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * ForestMetrics is a ForestListener that keeps running totals of training, loading and scoring: per-tree train time
+ * (with a histogram, so slow trees stand out), tree size, depth and split evaluations, bootstrap and OOB time, load
+ * throughput and the latency of every scored batch. Everything is a counter or a LatencyHistogram, so it is cheap
+ * enough to leave on. register() publishes it as a JMX MBean; toMap() gives the same numbers for JSON reports
+ *
+ * Usage: ForestMetrics metrics = ForestMetrics.register("training"); forest.addListener(metrics);
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+public class ForestMetrics implements ForestListener, ForestMetricsMBean {
+
+    static final String JMX_DOMAIN = "RandomForest";
+
+    private final LatencyHistogram treeTrainTimes = new LatencyHistogram();
+    private final LatencyHistogram batchTimes = new LatencyHistogram();
+
+    // per-tree totals, updated together under this object's lock (once per tree, so the lock is never contended much)
+    private long treesTrained;
+    private long maxTreeTrainNanos;
+    private int slowestTree = -1;
+    private long totalNodes;
+    private long totalLeaves;
+    private long totalDepth;
+    private int maxTreeDepth;
+    private long splitEvaluations;
+    private long bootstrapNanos;
+    private long oobNanos;
+    private long forestsTrained;
+    private long lastForestTrainNanos;
+
+    private final LongAdder rowsLoaded = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder rowsScored = new LongAdder();
+    private final LongAdder scoreNanos = new LongAdder();
+
+    private ObjectName objectName; // name this object is registered under, null when it is not registered
+
+    /**
+     * Creates a ForestMetrics and registers it with the platform MBean server as RandomForest:type=ForestMetrics,name=name
+     * (replacing any earlier registration of the same name)
+     */
+    public static ForestMetrics register(String name) {
+        ForestMetrics metrics = new ForestMetrics();
+        metrics.registerAs(name);
+        return metrics;
+    }
+
+    // Registers this object with the platform MBean server as RandomForest:type=ForestMetrics,name=name, replacing
+    // any earlier registration of the same name (and dropping its own earlier registration)
+    public synchronized void registerAs(String name) {
+        unregister();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName newName = new ObjectName(JMX_DOMAIN + ":type=ForestMetrics,name=" + ObjectName.quote(name));
+            if (server.isRegistered(newName))
+                server.unregisterMBean(newName);
+            server.registerMBean(this, newName);
+            objectName = newName;
+        }
+        catch (JMException e) {
+            throw new IllegalStateException("cannot register forest metrics " + name, e);
+        }
+    }
+
+    // Removes this object from the platform MBean server (nothing happens when it is not registered)
+    public synchronized void unregister() {
+        if (objectName == null)
+            return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+        }
+        catch (JMException e) {
+            throw new IllegalStateException("cannot unregister forest metrics " + objectName, e);
+        }
+        objectName = null;
+    }
+
+    public synchronized void treeTrained(TreeStats stats) {
+        treeTrainTimes.record(stats.trainNanos);
+        treesTrained++;
+        if (stats.trainNanos > maxTreeTrainNanos){
+            maxTreeTrainNanos = stats.trainNanos;
+            slowestTree = stats.treeIndex;
+        }
+        totalNodes += stats.numNodes;
+        totalLeaves += stats.numLeaves;
+        totalDepth += stats.depth;
+        maxTreeDepth = Math.max(maxTreeDepth, stats.depth);
+        splitEvaluations += stats.splitEvaluations;
+        bootstrapNanos += stats.bootstrapNanos;
+        oobNanos += stats.oobNanos;
+    }
+
+    public synchronized void forestTrained(int numTrees, long nanos) {
+        forestsTrained++;
+        lastForestTrainNanos = nanos;
+    }
+
+    public void batchScored(int numRows, long nanos) {
+        batchTimes.record(nanos);
+        rowsScored.add(numRows);
+        scoreNanos.add(nanos);
+    }
+
+    public void dataLoaded(String source, int numRows, long nanos) {
+        rowsLoaded.add(numRows);
+        loadNanos.add(nanos);
+    }
+
+    public synchronized long getTreesTrained() {
+        return treesTrained;
+    }
+
+    public synchronized double getMeanTreeTrainMillis() {
+        return treeTrainTimes.getMean() / 1e6;
+    }
+
+    public double getTreeTrainP99Millis() {
+        return treeTrainTimes.getValueAtPercentile(0.99) / 1e6;
+    }
+
+    public synchronized double getMaxTreeTrainMillis() {
+        return maxTreeTrainNanos / 1e6;
+    }
+
+    // returns the index of the tree that took longest to train (-1 before any tree)
+    public synchronized int getSlowestTree() {
+        return slowestTree;
+    }
+
+    public synchronized double getMeanTreeNodes() {
+        return treesTrained == 0 ? Double.NaN : totalNodes / (double) treesTrained;
+    }
+
+    public synchronized double getMeanTreeLeaves() {
+        return treesTrained == 0 ? Double.NaN : totalLeaves / (double) treesTrained;
+    }
+
+    public synchronized double getMeanTreeDepth() {
+        return treesTrained == 0 ? Double.NaN : totalDepth / (double) treesTrained;
+    }
+
+    public synchronized int getMaxTreeDepth() {
+        return maxTreeDepth;
+    }
+
+    public synchronized long getSplitEvaluations() {
+        return splitEvaluations;
+    }
+
+    // returns the total time spent drawing bootstrap samples (summed over threads)
+    public synchronized double getBootstrapMillis() {
+        return bootstrapNanos / 1e6;
+    }
+
+    // returns the total time spent classifying out-of-bag rows (summed over threads)
+    public synchronized double getOobMillis() {
+        return oobNanos / 1e6;
+    }
+
+    public synchronized long getForestsTrained() {
+        return forestsTrained;
+    }
+
+    public synchronized double getLastForestTrainMillis() {
+        return lastForestTrainNanos / 1e6;
+    }
+
+    public long getRowsLoaded() {
+        return rowsLoaded.sum();
+    }
+
+    public double getLoadRowsPerSec() {
+        long nanos = loadNanos.sum();
+        return nanos == 0 ? Double.NaN : rowsLoaded.sum() / (nanos / 1e9);
+    }
+
+    public long getBatchesScored() {
+        return batchTimes.getCount();
+    }
+
+    public long getRowsScored() {
+        return rowsScored.sum();
+    }
+
+    public double getScoreRowsPerSec() {
+        long nanos = scoreNanos.sum();
+        return nanos == 0 ? Double.NaN : rowsScored.sum() / (nanos / 1e9);
+    }
+
+    public double getScoreBatchP50Micros() {
+        return batchTimes.getValueAtPercentile(0.50) / 1e3;
+    }
+
+    public double getScoreBatchP99Micros() {
+        return batchTimes.getValueAtPercentile(0.99) / 1e3;
+    }
+
+    public double getScoreBatchP999Micros() {
+        return batchTimes.getValueAtPercentile(0.999) / 1e3;
+    }
+
+    public double getScoreBatchMaxMicros() {
+        return batchTimes.getMax() / 1e3;
+    }
+
+    public synchronized void reset() {
+        treeTrainTimes.reset();
+        batchTimes.reset();
+        treesTrained = 0;
+        maxTreeTrainNanos = 0;
+        slowestTree = -1;
+        totalNodes = 0;
+        totalLeaves = 0;
+        totalDepth = 0;
+        maxTreeDepth = 0;
+        splitEvaluations = 0;
+        bootstrapNanos = 0;
+        oobNanos = 0;
+        forestsTrained = 0;
+        lastForestTrainNanos = 0;
+        rowsLoaded.reset();
+        loadNanos.reset();
+        rowsScored.reset();
+        scoreNanos.reset();
+    }
+
+    // Returns the recorded numbers by name (only the sections that have seen work), for JSON reports
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        if (treesTrained > 0){
+            Map<String, Object> training = new LinkedHashMap<String, Object>();
+            training.put("trees", treesTrained);
+            training.put("meanTreeTrainMs", getMeanTreeTrainMillis());
+            training.put("treeTrainP99Ms", getTreeTrainP99Millis());
+            training.put("maxTreeTrainMs", getMaxTreeTrainMillis());
+            training.put("slowestTree", slowestTree);
+            training.put("meanNodes", getMeanTreeNodes());
+            training.put("meanLeaves", getMeanTreeLeaves());
+            training.put("meanDepth", getMeanTreeDepth());
+            training.put("maxDepth", maxTreeDepth);
+            training.put("splitEvaluations", splitEvaluations);
+            training.put("bootstrapMs", getBootstrapMillis());
+            training.put("oobMs", getOobMillis());
+            training.put("lastForestTrainMs", getLastForestTrainMillis());
+            map.put("training", training);
+        }
+        if (rowsLoaded.sum() > 0){
+            Map<String, Object> loading = new LinkedHashMap<String, Object>();
+            loading.put("rows", getRowsLoaded());
+            loading.put("rowsPerSec", getLoadRowsPerSec());
+            map.put("loading", loading);
+        }
+        if (batchTimes.getCount() > 0){
+            Map<String, Object> scoring = new LinkedHashMap<String, Object>();
+            scoring.put("batches", getBatchesScored());
+            scoring.put("rows", getRowsScored());
+            scoring.put("rowsPerSec", getScoreRowsPerSec());
+            scoring.put("batchP50Us", getScoreBatchP50Micros());
+            scoring.put("batchP99Us", getScoreBatchP99Micros());
+            scoring.put("batchP999Us", getScoreBatchP999Micros());
+            scoring.put("batchMaxUs", getScoreBatchMaxMicros());
+            map.put("scoring", scoring);
+        }
+        return map;
+    }
+}
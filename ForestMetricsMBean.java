@@ -0,0 +1,41 @@
+/***
+ * Name of File: ForestMetricsMBean
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * ForestMetricsMBean is the JMX view of ForestMetrics (attributes show up in jconsole / VisualVM under "RandomForest")
+ */
+
+public interface ForestMetricsMBean {
+
+    // training
+    long getTreesTrained();
+    double getMeanTreeTrainMillis();
+    double getTreeTrainP99Millis();
+    double getMaxTreeTrainMillis();
+    int getSlowestTree();
+    double getMeanTreeNodes();
+    double getMeanTreeLeaves();
+    double getMeanTreeDepth();
+    int getMaxTreeDepth();
+    long getSplitEvaluations();
+    double getBootstrapMillis();
+    double getOobMillis();
+    long getForestsTrained();
+    double getLastForestTrainMillis();
+
+    // loading
+    long getRowsLoaded();
+    double getLoadRowsPerSec();
+
+    // scoring
+    long getBatchesScored();
+    long getRowsScored();
+    double getScoreRowsPerSec();
+    double getScoreBatchP50Micros();
+    double getScoreBatchP99Micros();
+    double getScoreBatchP999Micros();
+    double getScoreBatchMaxMicros();
+
+    // forgets everything recorded so far
+    void reset();
+}
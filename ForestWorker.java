@@ -0,0 +1,267 @@
+/***
+ * Name of File: ForestWorker
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * ForestWorker is a process that trains trees for a coordinating RandomForest (see ForestCoordinator and
+ * RandomForest.trainForest(workers, dataFile)). It waits for coordinators on a TCP port; each job names the training
+ * data file, the forest parameters and a range of tree indices. The worker reads the file itself (a binary dataset
+ * file is memory-mapped), trains the trees of the range on its own threads with the seeds the coordinator would use,
+ * and streams every tree back, compiled, with its out-of-bag rows and predictions.
+ *
+ * Protocol (DataInput/DataOutputStream): the coordinator sends MAGIC and VERSION once, then jobs:
+ *   data file, seed, first tree index, number of trees, features per node, max depth, min split, level-wise flag,
+ *   split criterion, parallel split threshold (rows, 0 for none)
+ * (an empty data file name ends the connection). The worker answers a job with the number of rows and features of
+ * the data, then for each tree: tree index, OOB error, OOB row bitset, positive-prediction bitset, compiled tree
+ * bytes, tree stats (train, bootstrap and OOB nanoseconds, nodes, leaves, depth, split evaluations), and finally
+ * END_OF_JOB. Any failure is sent as FAILED and a message instead.
+ *
+ * The worker only listens on the loopback interface unless -bind names another address (0.0.0.0 for all), and only
+ * opens data files inside its data directory (the working directory unless -dataDir says otherwise); a relative data
+ * file name is taken relative to that directory.
+ *
+ * Usage: java ForestWorker [-port 7001] [-bind address] [-dataDir directory] [-threads n]
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ForestWorker {
+
+    static final int MAGIC = 0x52465754; // "RFWT"
+    // version 2: compiled trees carry split thresholds, 3: jobs carry the parallel split threshold, 4: jobs name the
+    // split criterion, 5: trees carry their stats
+    static final int VERSION = 5;
+    static final int END_OF_JOB = -1;
+    static final int FAILED = -2;
+
+    private final ForkJoinPool pool; // trains the trees of a job
+    private final Path dataDir; // jobs may only name data files inside this directory (real path)
+    private Path cachedFile; // data file of the last job, consecutive jobs usually use the same one
+    private BitDataset cachedData;
+
+    // Constructor, serves the data files inside the working directory
+    public ForestWorker(int numThreads) throws IOException {
+        this(numThreads, Paths.get(""));
+    }
+
+    // Constructor, serves the data files inside dataDirectory
+    public ForestWorker(int numThreads, Path dataDirectory) throws IOException {
+        pool = new ForkJoinPool(numThreads);
+        dataDir = dataDirectory.toRealPath();
+    }
+
+    // Accepts coordinators forever, each connection is served on its own thread
+    public void serve(ServerSocket server) throws IOException {
+        while (true){
+            Socket socket = server.accept();
+            Thread handler = new Thread(() -> handle(socket), "forest-worker-" + socket.getRemoteSocketAddress());
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    // Runs the jobs of one coordinator connection
+    void handle(Socket socket) {
+        try (Socket s = socket){
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION){
+                out.writeInt(FAILED);
+                out.writeUTF("not a forest coordinator, or a different protocol version");
+                out.flush();
+                return;
+            }
+            while (true){
+                String dataFile = in.readUTF();
+                if (dataFile.isEmpty())
+                    return;
+                long seed = in.readLong();
+                int first = in.readInt();
+                int count = in.readInt();
+                int maxNumFeat = in.readInt();
+                int treeDepth = in.readInt();
+                int minSamp = in.readInt();
+                boolean levelWise = in.readBoolean();
+                String criterion = in.readUTF();
+                int parallelSplit = in.readInt();
+                runJob(out, dataFile, seed, first, count, maxNumFeat, treeDepth, minSamp, levelWise, criterion, parallelSplit);
+                out.flush();
+            }
+        }
+        catch (IOException e) { // the coordinator went away, nothing to report to
+            System.err.println("connection " + socket.getRemoteSocketAddress() + " closed: " + e.getMessage());
+        }
+    }
+
+    // Trains trees first .. first + count - 1 and writes them to out in index order, as soon as each is ready
+    private void runJob(DataOutputStream out, String dataFile, long seed, int first, int count, int maxNumFeat,
+                        int treeDepth, int minSamp, boolean levelWise, String criterion, int parallelSplit) throws IOException {
+        ArrayList<Future<RandomForest.TreeResult>> results = new ArrayList<Future<RandomForest.TreeResult>>();
+        try {
+            BitDataset data = dataset(dataFile);
+            out.writeInt(data.getNumRows());
+            out.writeInt(data.getNumFeatures());
+
+            RandomForest forest = new RandomForest(data, first + count, maxNumFeat, treeDepth, minSamp);
+            forest.setSeed(seed);
+            forest.setLevelWise(levelWise);
+            forest.setCriterion(DecisionTree.SplitCriterion.valueOf(criterion));
+            forest.setParallelSplit(parallelSplit); // candidates are counted on the worker's pool, which trains the tree
+            for (int i=first; i<first + count; i++){
+                final int treeIndex = i;
+                results.add(pool.submit(() -> forest.trainTree(treeIndex)));
+            }
+            for (int i=0; i<count; i++){
+                writeTree(out, first + i, results.get(i).get(), data.getNumRows());
+                out.flush(); // stream each tree as soon as it is written
+            }
+            out.writeInt(END_OF_JOB);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(out, "worker interrupted", results);
+        }
+        catch (ExecutionException e) {
+            fail(out, "tree training failed: " + e.getCause(), results);
+        }
+        catch (IOException | RuntimeException e) { // if the connection itself failed, writing the failure throws too
+            fail(out, e.toString(), results);
+        }
+    }
+
+    private static void fail(DataOutputStream out, String message, List<Future<RandomForest.TreeResult>> results) throws IOException {
+        for (Future<RandomForest.TreeResult> result : results)
+            result.cancel(false);
+        out.writeInt(FAILED);
+        out.writeUTF(message);
+    }
+
+    // Reads a data file, or returns it from the cache when the last job used the same file
+    private synchronized BitDataset dataset(String file) throws IOException {
+        Path path = resolve(file);
+        if (!path.equals(cachedFile)){
+            cachedData = null; // let the old data go before reading the new one
+            cachedData = DatasetReader.read(path.toString());
+            cachedFile = path;
+        }
+        return cachedData;
+    }
+
+    // Returns the real path of a data file named by a job, which must lie inside the data directory
+    // (symbolic links and ".." are resolved first, so neither can lead out of it)
+    Path resolve(String file) throws IOException {
+        Path path;
+        try {
+            path = dataDir.resolve(file).toRealPath();
+        }
+        catch (InvalidPathException | NoSuchFileException e) {
+            throw new FileNotFoundException(file + " is not a file in the data directory of the worker");
+        }
+        if (!path.startsWith(dataDir) || !Files.isRegularFile(path))
+            throw new FileNotFoundException(file + " is not a file in the data directory of the worker");
+        return path;
+    }
+
+    // Writes one trained tree: index, OOB error, OOB rows and positive predictions as bitsets, the compiled tree, then its stats
+    static void writeTree(DataOutputStream out, int treeIndex, RandomForest.TreeResult result, int numRows) throws IOException {
+        long[] oobRows = new long[BitDataset.wordsFor(numRows)];
+        long[] positive = new long[oobRows.length];
+        for (int i=0; i<result.oobRows.length; i++){
+            int row = result.oobRows[i];
+            oobRows[row >>> 6] |= 1L << row;
+            if (result.oobPredictions[i])
+                positive[row >>> 6] |= 1L << row;
+        }
+        CompiledForest tree = CompiledForest.compile(Collections.singletonList(result.tree));
+        ByteBuffer buffer = ByteBuffer.allocate(tree.byteSize()).order(ByteOrder.LITTLE_ENDIAN);
+        tree.write(buffer);
+
+        out.writeInt(treeIndex);
+        out.writeDouble(result.oobScore);
+        for (long word : oobRows)
+            out.writeLong(word);
+        for (long word : positive)
+            out.writeLong(word);
+        out.writeInt(buffer.capacity());
+        out.write(buffer.array());
+        TreeStats stats = result.stats;
+        out.writeLong(stats.trainNanos);
+        out.writeLong(stats.bootstrapNanos);
+        out.writeLong(stats.oobNanos);
+        out.writeInt(stats.numNodes);
+        out.writeInt(stats.numLeaves);
+        out.writeInt(stats.depth);
+        out.writeLong(stats.splitEvaluations);
+    }
+
+    // Reads tree treeIndex written by writeTree() (after its index)
+    static RandomForest.TreeResult readTree(DataInputStream in, int treeIndex, int numRows, int numFeatures) throws IOException {
+        double oobScore = in.readDouble();
+        long[] oobBits = new long[BitDataset.wordsFor(numRows)];
+        long[] positive = new long[oobBits.length];
+        int numOob = 0;
+        for (int w=0; w<oobBits.length; w++){
+            oobBits[w] = in.readLong();
+            numOob += Long.bitCount(oobBits[w]);
+        }
+        for (int w=0; w<positive.length; w++)
+            positive[w] = in.readLong();
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        CompiledForest tree = CompiledForest.read(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN), RandomForest.MODEL_VERSION, numFeatures);
+        TreeStats stats = new TreeStats(treeIndex, in.readLong(), in.readLong(), in.readLong(), in.readInt(), in.readInt(), in.readInt(), in.readLong());
+
+        int[] oobRows = new int[numOob];
+        boolean[] oobPredictions = new boolean[numOob];
+        int next = 0;
+        for (int w=0; w<oobBits.length; w++){
+            long bits = oobBits[w];
+            while (bits != 0){
+                int row = (w << 6) + Long.numberOfTrailingZeros(bits);
+                oobRows[next] = row;
+                oobPredictions[next++] = (positive[w] & (1L << row)) != 0;
+                bits &= bits - 1;
+            }
+        }
+        return new RandomForest.TreeResult(null, tree, oobRows, oobPredictions, oobScore, stats);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 7001;
+        InetAddress bind = InetAddress.getLoopbackAddress();
+        Path dataDir = Paths.get("");
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i=0; i<args.length; i+=2){
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("missing value for " + args[i]);
+                switch (args[i]){
+                    case "-port": port = Integer.parseInt(args[i + 1]); break;
+                    case "-bind": bind = InetAddress.getByName(args[i + 1]); break;
+                    case "-dataDir": dataDir = Paths.get(args[i + 1]); break;
+                    case "-threads": threads = Integer.parseInt(args[i + 1]); break;
+                    default: throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            }
+        }
+        catch (IllegalArgumentException | UnknownHostException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: java ForestWorker [-port 7001] [-bind address] [-dataDir directory] [-threads n]");
+            System.exit(2);
+        }
+
+        ForestWorker worker = new ForestWorker(threads, dataDir);
+        try (ServerSocket server = new ServerSocket(port, 0, bind)){
+            System.out.println("Forest worker listening on " + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort()
+                + " with " + threads + " threads, serving data files in " + worker.dataDir);
+            worker.serve(server);
+        }
+    }
+}
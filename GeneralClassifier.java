@@ -15,9 +15,8 @@ public class GeneralClassifier {
     // Random number generator
     static Random rand = new Random();
 
-	// Examples divided into 4 Arraylists: training (positive and negative) and testing (positive and negative)
-	static ArrayList<Example> trainPosWhile, trainNegWhile;
-	static ArrayList<Example> testPosWhile, testNegWhile;
+	// Training and testing examples, stored column by column
+	static BitDataset trainData, testData;
 
 	static String trainFileName; // name of file containing Training data
 	static String testFileName; // name of file containing Testing data
@@ -27,12 +26,13 @@ public class GeneralClassifier {
 	static int maxTreeDepth; // maximum depth of each decision tree 
     static int minSampSplit; // minimum number of samples at each node needed to split 
 
-    //ArrayList of all training examples (negative and positive)
-    static ArrayList<Example> trainExs;
-
 	static Scanner scan = new Scanner(System.in);
 
-    public static void main(String[] args) throws FileNotFoundException {
+    public static void main(String[] args) throws IOException {
+
+		if(args.length > 0){ // headless mode: everything comes from the command line, see BatchJob
+			System.exit(BatchJob.run(args));
+		}
 
 		boolean analyze = true;
 		System.out.println("Welcome to our Random Forest generator. Would you like to create and run a Random Forest on some data?");
@@ -108,108 +108,79 @@ public class GeneralClassifier {
 	
     // Train and tests a random forest on data 
 	// Outputs positive accuracy, negative accuracy, total accuracy, and OOB results 
-    private static void testClassifier() throws FileNotFoundException {
+    private static void testClassifier() throws IOException {
 
-		// Initializes empty ArrayLists to store negatie and positive training data 
-		trainPosWhile = new ArrayList<Example>();
-		trainNegWhile = new ArrayList<Example>();
+		// Training, loading and scoring totals (also visible over JMX while the classifier runs)
+		ForestMetrics metrics = ForestMetrics.register("GeneralClassifier");
 
     	// Load training examples from input training file specified by user previously 
-    	loadExamples(trainFileName, trainPosWhile, trainNegWhile);
-
-	    trainExs = new ArrayList<Example>(); // examples for training (positive and negative)
-
-	    //Loading TrainExample array - Positive examples
-	    for(Example e : trainPosWhile) {
-	    	trainExs.add(e);
-	    }
-
-	    //Loading TrainExample array - Negative examples 
-	    for(Example e : trainNegWhile) {
-	    	trainExs.add(e);
-	    }
+		long start = System.nanoTime();
+    	trainData = DatasetReader.read(trainFileName);
+		metrics.dataLoaded(trainFileName, trainData.getNumRows(), System.nanoTime() - start);
+    	numTotalFeat = trainData.getNumFeatures();
 
 	    // Create and train the random forest using the training examples and user-specified Random Forest parameters 
-		RandomForest randForest = new RandomForest(trainExs, forestSize, numTotalFeat, numFeatChoose, maxTreeDepth, minSampSplit);
-	  	randForest.trainForest();
-
-		// Initializes empty ArrayLists to store negative and positive testing data
-		testPosWhile = new ArrayList<Example>();
-		testNegWhile = new ArrayList<Example>();
+		RandomForest randForest = new RandomForest(trainData, forestSize, numFeatChoose, maxTreeDepth, minSampSplit);
+		randForest.addListener(metrics);
+	  	randForest.trainForest(Runtime.getRuntime().availableProcessors()); // trees are trained in parallel on all cores
 
 		//Load testing examples from input testing file specified by user previously 
-		loadExamples(testFileName, testPosWhile, testNegWhile);
-
-		// Evaluate Random Forest classification of all positive testing examples 
-		int posCorrect = 0;
-		for (Example e : testPosWhile ) {
-		    if (randForest.evaluateExample(e)) // algorithm correctly classifies positive example
-			posCorrect++;
-		}
-
-		System.out.println("Positive examples correct: "+posCorrect+" out of "+ testPosWhile.size());
-		double accuracy = Double.valueOf(posCorrect) / Double.valueOf(testPosWhile.size());
+		start = System.nanoTime();
+		testData = DatasetReader.read(testFileName, randForest.getBins()); // numeric and categorical cells are coded like the training data
+		metrics.dataLoaded(testFileName, testData.getNumRows(), System.nanoTime() - start);
+
+		// Evaluate Random Forest classification of all testing examples in one batch
+		int[] correct = countCorrect(randForest.evaluateBatch(testData), testData);
+		int posCorrect = correct[0];
+		int negCorrect = correct[1];
+		int numTestPos = testData.countPositive();
+		int numTestNeg = testData.getNumRows() - numTestPos;
+
+		System.out.println("Positive examples correct: "+posCorrect+" out of "+ numTestPos);
+		double accuracy = Double.valueOf(posCorrect) / Double.valueOf(numTestPos);
 		System.out.println("Positive accuracy: " + accuracy );
 
-		// Evaluate Random Forest classification of all negative testing examples
-		int negCorrect = 0;
-		for (Example e : testNegWhile) {
-		    if (!randForest.evaluateExample(e)) // algorithm correctly classifies negative example
-			negCorrect++;
-		}
-
-		System.out.println("Negative examples correct: "+negCorrect+" out of "+testNegWhile.size());
-		accuracy = Double.valueOf(negCorrect) / Double.valueOf(testNegWhile.size());
+		System.out.println("Negative examples correct: "+negCorrect+" out of "+numTestNeg);
+		accuracy = Double.valueOf(negCorrect) / Double.valueOf(numTestNeg);
 		System.out.println("Negative accuracy: " + accuracy );
 		System.out.println();
 
 		// Calculates and prints out overall accuracy from Random Forest algorithm
 		double totalAccuracy =(  Double.valueOf(negCorrect) + Double.valueOf(posCorrect) );
-		totalAccuracy = totalAccuracy / (Double.valueOf(testPosWhile.size()) + Double.valueOf(testNegWhile.size()));
+		totalAccuracy = totalAccuracy / (Double.valueOf(numTestPos) + Double.valueOf(numTestNeg));
 		System.out.println("Overall total accuracy is: " + totalAccuracy);
 
-		// Calcualtes and prints out OOB (out of bag) error estimate 
-		double score = randForest.calcMeanOobScore();
+		// Calcualtes and prints out OOB (out of bag) error estimate of the forest and the average single-tree OOB error
+		double score = randForest.calcForestOobError();
 		System.out.println("OOB: " + score);
+		System.out.println("Mean single-tree OOB: " + randForest.calcMeanOobScore());
+		System.out.println();
+		printMetrics(metrics);
     }
 
-	// Loads in examples from a data file and stores the examples in a global Positive Example ArrayList and a global Negative Example ArrayList
-	private static void loadExamples(String file, ArrayList<Example> posWhile, ArrayList<Example> negWhile) throws FileNotFoundException
-    {
-    	Scanner scanner = new Scanner(new File(file));
-		numTotalFeat = (scanner.nextLine().split("	").length) - 1 ; // counts number of features in header minus label feature
-
-		while(scanner.hasNextLine()){ // an example exists to be read in 
-			String n = scanner.next(); // example label 
-			
-			if (n.equals("positive")){ 
-				Example currExample = new Example(numTotalFeat);
-
-				for(int j=0; j<numTotalFeat; j++){ // iterates through all feature values for example 
-	    			if(scanner.hasNextBoolean()){
-	    				boolean b = scanner.nextBoolean();
-	    				currExample.setFeatureValue(j, b);
-	    			}
-	    		}
-				currExample.setLabel(true);
-				posWhile.add(currExample); // adds example to list of positive examples
-			}
-			else if (n.equals("negative")){ 
-				Example currExample = new Example(numTotalFeat);
-
-				for(int j=0; j<numTotalFeat; j++){
-	    			if(scanner.hasNextBoolean()){
-	    				boolean b = scanner.nextBoolean();
-	    				currExample.setFeatureValue(j, b);
-	    			}
-	    		}
-				currExample.setLabel(false);
-				negWhile.add(currExample); // adds examples to list of negative examples
-			}
-			else{
-    			System.out.println("ERROR: "+ n); // debugging (shouldn't execute if data is formatted correctly)
-    		}
+	// Prints where the time went: per-tree training, tree shape, loading and scoring
+	private static void printMetrics(ForestMetrics metrics) {
+		System.out.printf("Trees: %d in %.1f ms (mean %.2f ms per tree, slowest tree %d took %.2f ms)%n",
+			metrics.getTreesTrained(), metrics.getLastForestTrainMillis(), metrics.getMeanTreeTrainMillis(),
+			metrics.getSlowestTree(), metrics.getMaxTreeTrainMillis());
+		System.out.printf("Mean tree: %.1f nodes, %.1f leaves, depth %.1f; %d split evaluations in all%n",
+			metrics.getMeanTreeNodes(), metrics.getMeanTreeLeaves(), metrics.getMeanTreeDepth(), metrics.getSplitEvaluations());
+		System.out.printf("Bootstrap: %.1f ms, OOB: %.1f ms%n", metrics.getBootstrapMillis(), metrics.getOobMillis());
+		System.out.printf("Loading: %.0f rows/s; scoring: %.0f rows/s (batch p50 %.1f us, p99 %.1f us)%n",
+			metrics.getLoadRowsPerSec(), metrics.getScoreRowsPerSec(), metrics.getScoreBatchP50Micros(), metrics.getScoreBatchP99Micros());
+	}
+
+	// Compares packed batch predictions with the labels of data
+	// Returns {number of positive examples classified correctly, number of negative examples classified correctly}
+	static int[] countCorrect(long[] predictions, BitDataset data) {
+		long[] labels = data.getLabels();
+		int posCorrect = 0;
+		int negCorrect = 0;
+		for (int w=0; w<predictions.length; w++) {
+			posCorrect += Long.bitCount(predictions[w] & labels[w]); // algorithm correctly classifies positive example
+			negCorrect += Long.bitCount(~predictions[w] & ~labels[w]); // algorithm correctly classifies negative example
 		}
-		scanner.close();
+		negCorrect -= 64 * predictions.length - data.getNumRows(); // padding bits past the last row are not examples
+		return new int[] {posCorrect, negCorrect};
 	}
 }
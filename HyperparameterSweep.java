@@ -0,0 +1,308 @@
+/***
+ * Name of File: HyperparameterSweep
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * HyperparameterSweep trains and ranks many RandomForest configurations (forest size, features per node, maximum depth,
+ * minimum split size) on a training set that is loaded once. All configurations use the same seed and share one
+ * BootstrapCache, so tree i gets the same bootstrap sample in every forest. Configurations are trained several at a time
+ * and their trees are built on one shared thread pool. Configurations are ranked by forest OOB error, or by k-fold
+ * cross-validation error when folds are set
+ *
+ * Usage: java HyperparameterSweep -train file [-trees 50,100,300] [-features 3,5] [-depth 5,10] [-minSplit 2,5]
+ *          [-random n] [-folds k] [-seed n] [-threads n] [-metrics file]
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class HyperparameterSweep {
+
+    // One set of RandomForest parameters and the result of evaluating it
+    public static class Config {
+        final int trees;
+        final int features;
+        final int depth;
+        final int minSplit;
+        double error = Double.NaN; // forest OOB error, or mean cross-validation error
+        double trainMs; // total training time for this configuration
+
+        public Config(int numTrees, int numFeatures, int maxDepth, int minSamples) {
+            trees = numTrees;
+            features = numFeatures;
+            depth = maxDepth;
+            minSplit = minSamples;
+        }
+
+        public double getError() {
+            return error;
+        }
+
+        public String toString() {
+            return "trees=" + trees + " features=" + features + " depth=" + depth + " minSplit=" + minSplit + " error=" + error;
+        }
+    }
+
+    private final BitDataset data; // training data, loaded once for all configurations
+    private final long seed; // seed shared by every configuration
+    private final int numThreads; // threads building trees
+    private int folds = 0; // number of cross-validation folds, 0 to rank by OOB error
+
+    // Constructor
+    public HyperparameterSweep(BitDataset d, long s, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be at least 1");
+        data = d;
+        seed = s;
+        numThreads = threads;
+    }
+
+    // Ranks configurations by k-fold cross-validation error instead of OOB error (0 goes back to OOB error)
+    public void setFolds(int k) {
+        if (k == 1 || k < 0 || k > data.getNumRows())
+            throw new IllegalArgumentException("folds must be 0 or between 2 and the number of rows");
+        folds = k;
+    }
+
+    // Returns every combination of the given values
+    public static List<Config> grid(int[] trees, int[] features, int[] depths, int[] minSplits) {
+        ArrayList<Config> configs = new ArrayList<Config>();
+        for (int t : trees)
+            for (int f : features)
+                for (int d : depths)
+                    for (int m : minSplits)
+                        configs.add(new Config(t, f, d, m));
+        return configs;
+    }
+
+    // Returns n configurations picked at random (without repeats) from configs
+    public static List<Config> randomSample(List<Config> configs, int n, Random rand) {
+        ArrayList<Config> shuffled = new ArrayList<Config>(configs);
+        Collections.shuffle(shuffled, rand);
+        return new ArrayList<Config>(shuffled.subList(0, Math.min(n, shuffled.size())));
+    }
+
+    // Evaluates every configuration and returns them sorted from lowest to highest error
+    public List<Config> run(List<Config> configs) {
+        int maxTrees = 0;
+        for (Config c : configs)
+            maxTrees = Math.max(maxTrees, c.trees);
+
+        // the training part of each fold (or the whole data for OOB ranking) with its shared bootstrap samples
+        int numParts = folds == 0 ? 1 : folds;
+        BitDataset[] trainParts = new BitDataset[numParts];
+        BitDataset[] testParts = new BitDataset[numParts];
+        BootstrapCache[] caches = new BootstrapCache[numParts];
+        if (folds == 0){
+            trainParts[0] = data;
+        }
+        else{
+            int[] foldOf = assignFolds();
+            for (int k=0; k<folds; k++){
+                trainParts[k] = data.select(rowsWhere(foldOf, k, false));
+                testParts[k] = data.select(rowsWhere(foldOf, k, true));
+            }
+        }
+        for (int k=0; k<numParts; k++)
+            caches[k] = new BootstrapCache(trainParts[k].getNumRows(), seed, maxTrees);
+
+        ForkJoinPool treePool = new ForkJoinPool(numThreads);
+        ExecutorService configPool = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, configs.size())));
+        try {
+            ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+            for (Config c : configs)
+                results.add(configPool.submit(() -> evaluate(c, trainParts, testParts, caches, treePool)));
+            for (Future<?> result : results)
+                result.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted during sweep", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("sweep failed", e.getCause());
+        }
+        finally {
+            configPool.shutdown();
+            treePool.shutdown();
+        }
+
+        ArrayList<Config> ranked = new ArrayList<Config>(configs);
+        ranked.sort(Comparator.comparingDouble(Config::getError));
+        return ranked;
+    }
+
+    // Trains the forest(s) of one configuration and records its error
+    private void evaluate(Config c, BitDataset[] trainParts, BitDataset[] testParts, BootstrapCache[] caches, ExecutorService treePool) {
+        long start = System.nanoTime();
+        double errorSum = 0;
+        for (int k=0; k<trainParts.length; k++){
+            RandomForest forest = new RandomForest(trainParts[k], c.trees, c.features, c.depth, c.minSplit);
+            forest.useBootstrapCache(caches[k]);
+            forest.trainForest(treePool);
+            if (folds == 0){
+                errorSum += forest.calcForestOobError();
+            }
+            else{
+                BitDataset test = testParts[k];
+                int[] correct = GeneralClassifier.countCorrect(forest.evaluateBatch(test), test);
+                errorSum += 1.0 - (correct[0] + correct[1]) / (double) test.getNumRows();
+            }
+        }
+        c.error = errorSum / trainParts.length;
+        c.trainMs = (System.nanoTime() - start) / 1e6;
+    }
+
+    // Assigns every row to a fold with a seeded shuffle
+    private int[] assignFolds() {
+        int n = data.getNumRows();
+        int[] order = new int[n];
+        for (int i=0; i<n; i++)
+            order[i] = i;
+        Random rand = new Random(seed);
+        for (int i=n-1; i>0; i--){ // Fisher-Yates shuffle
+            int j = rand.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        int[] foldOf = new int[n];
+        for (int i=0; i<n; i++)
+            foldOf[order[i]] = i % folds;
+        return foldOf;
+    }
+
+    // Returns the rows in fold k (inFold true) or not in fold k (inFold false)
+    private static int[] rowsWhere(int[] foldOf, int k, boolean inFold) {
+        int count = 0;
+        for (int f : foldOf){
+            if ((f == k) == inFold)
+                count++;
+        }
+        int[] rows = new int[count];
+        int next = 0;
+        for (int i=0; i<foldOf.length; i++){
+            if ((foldOf[i] == k) == inFold)
+                rows[next++] = i;
+        }
+        return rows;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String trainFile = null;
+        String metricsFile = null;
+        int[] trees = {100};
+        int[] features = null;
+        int[] depths = {10};
+        int[] minSplits = {2};
+        int randomConfigs = 0;
+        int k = 0;
+        long s = new Random().nextLong();
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        try {
+            for (int i=0; i<args.length; i+=2){
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("missing value for " + args[i]);
+                String value = args[i + 1];
+                switch (args[i]){
+                    case "-train": trainFile = value; break;
+                    case "-trees": trees = parseList(args[i], value, 1); break;
+                    case "-features": features = parseList(args[i], value, 1); break;
+                    case "-depth": depths = parseList(args[i], value, 0); break;
+                    case "-minSplit": minSplits = parseList(args[i], value, 0); break;
+                    case "-random": randomConfigs = Integer.parseInt(value); break;
+                    case "-folds": k = Integer.parseInt(value); break;
+                    case "-seed": s = Long.parseLong(value); break;
+                    case "-threads": threads = Integer.parseInt(value); break;
+                    case "-metrics": metricsFile = value; break;
+                    default: throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            }
+            if (trainFile == null)
+                throw new IllegalArgumentException("-train is required");
+            if (randomConfigs < 0)
+                throw new IllegalArgumentException("-random must be at least 0, not " + randomConfigs);
+            if (k < 0 || k == 1)
+                throw new IllegalArgumentException("-folds must be 0 or at least 2, not " + k);
+            if (threads < 1)
+                throw new IllegalArgumentException("-threads must be at least 1, not " + threads);
+        }
+        catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+        }
+
+        long start = System.nanoTime();
+        BitDataset train = DatasetReader.read(trainFile);
+        double loadMs = (System.nanoTime() - start) / 1e6;
+        if (k > train.getNumRows())
+            usage("-folds must be at most the " + train.getNumRows() + " rows of " + trainFile + ", not " + k);
+        if (features == null)
+            features = new int[] {Math.max(1, (int) Math.sqrt(train.getNumFeatures()))};
+
+        List<Config> configs = grid(trees, features, depths, minSplits);
+        if (randomConfigs > 0)
+            configs = randomSample(configs, randomConfigs, new Random(s));
+
+        HyperparameterSweep sweep = new HyperparameterSweep(train, s, threads);
+        if (k > 0)
+            sweep.setFolds(k);
+        start = System.nanoTime();
+        List<Config> ranked = sweep.run(configs);
+        double sweepMs = (System.nanoTime() - start) / 1e6;
+
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("train", trainFile);
+        metrics.put("seed", s);
+        metrics.put("ranking", k > 0 ? k + "-fold cross-validation error" : "forest OOB error");
+        metrics.put("loadMs", loadMs);
+        metrics.put("sweepMs", sweepMs);
+        ArrayList<Object> results = new ArrayList<Object>();
+        for (Config c : ranked){
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            result.put("trees", c.trees);
+            result.put("features", c.features);
+            result.put("depth", c.depth);
+            result.put("minSplit", c.minSplit);
+            result.put("error", c.error);
+            result.put("trainMs", c.trainMs);
+            results.add(result);
+        }
+        metrics.put("configs", results);
+
+        String json = BatchJob.toJson(metrics);
+        if (metricsFile != null)
+            Files.write(Paths.get(metricsFile), (json + "\n").getBytes(StandardCharsets.UTF_8));
+        else
+            System.out.println(json);
+    }
+
+    // Parses the comma separated list of integers given for option, each at least min
+    private static int[] parseList(String option, String list, int min) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i=0; i<parts.length; i++){
+            try {
+                values[i] = Integer.parseInt(parts[i].trim());
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException(option + " must be a list of integers, not " + list);
+            }
+            if (values[i] < min)
+                throw new IllegalArgumentException(option + " values must be at least " + min + ", not " + values[i]);
+        }
+        return values;
+    }
+
+    // Prints message and the usage and exits with status 2
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("usage: java HyperparameterSweep -train file [-trees 50,100,300] [-features 3,5] [-depth 5,10] [-minSplit 2,5]");
+        System.err.println("         [-random n] [-folds k] [-seed n] [-threads n] [-metrics file]");
+        System.exit(2);
+    }
+}
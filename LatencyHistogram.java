@@ -0,0 +1,94 @@
+/***
+ * Name of File: LatencyHistogram
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * LatencyHistogram counts durations (in nanoseconds) in log-linear buckets, the way HdrHistogram does: values below
+ * 2 * SUB_BUCKETS are counted exactly, larger values in buckets 1/SUB_BUCKETS of their power of two wide, so every
+ * percentile is within 1% of the true value whatever the range. Recording is one atomic increment, without locks or
+ * allocation, so it can stay on in production; the whole histogram is a fixed array of about 7000 counters
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 7;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // buckets per power of two
+    static final int NUM_BUCKETS = 2 * SUB_BUCKETS + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder total = new LongAdder(); // number of recorded values
+    private final LongAdder sum = new LongAdder(); // sum of the recorded values
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    // Records one duration in nanoseconds (negative values count as 0)
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    // Bucket of value: values below 2 * SUB_BUCKETS have their own bucket, then SUB_BUCKETS buckets per power of two
+    static int bucket(long value) {
+        if (value < 2 * SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // at least SUB_BUCKET_BITS + 1
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS; // the SUB_BUCKET_BITS bits below the top bit
+        return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + sub;
+    }
+
+    // Largest value that falls into bucket b
+    static long highestValue(int b) {
+        if (b < 2 * SUB_BUCKETS)
+            return b;
+        int shift = (b - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+        long sub = (b - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    // Returns the value (in nanoseconds) at or below which a fraction p (0 to 1) of the recorded values fall,
+    // 0 when nothing has been recorded. Counts recorded while this runs may or may not be included
+    public long getValueAtPercentile(double p) {
+        long count = total.sum();
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * count));
+        long seen = 0;
+        for (int b=0; b<NUM_BUCKETS; b++){
+            seen += counts.get(b);
+            if (seen >= rank)
+                return Math.min(highestValue(b), max.get());
+        }
+        return max.get();
+    }
+
+    // returns the number of recorded values
+    public long getCount() {
+        return total.sum();
+    }
+
+    // returns the mean recorded value in nanoseconds, NaN when nothing has been recorded
+    public double getMean() {
+        long count = total.sum();
+        return count == 0 ? Double.NaN : sum.sum() / (double) count;
+    }
+
+    // returns the largest recorded value in nanoseconds
+    public long getMax() {
+        return max.get();
+    }
+
+    // Forgets every recorded value (values recorded at the same time may survive)
+    public void reset() {
+        for (int b=0; b<NUM_BUCKETS; b++)
+            counts.set(b, 0);
+        total.reset();
+        sum.reset();
+        max.reset();
+    }
+}
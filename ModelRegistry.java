@@ -0,0 +1,180 @@
+/***
+ * Name of File: ModelRegistry
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * ModelRegistry holds the forest used for scoring and lets a newly trained or loaded forest replace it while the
+ * process keeps serving. The current version sits in an AtomicReference: a caller reads it once and scores with it,
+ * so calls already running finish on the old forest while new calls get the new one. A new forest is warmed up
+ * (scored on sample rows) before it is published, and the last few replaced versions are kept for rollback
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ModelRegistry {
+
+    static final int WARMUP_ROWS = 1024; // rows of random warm-up data when no warm-up rows are given
+    static final int WARMUP_ROUNDS = 20; // times the warm-up rows are scored before a forest is published
+
+    // One published forest
+    public static class Version {
+        final int number; // 1 for the first published forest, then counting up
+        final RandomForest forest;
+        final String source; // where the forest came from (model file, "trained", ...)
+        final long publishedMillis; // System.currentTimeMillis() when it was published
+
+        Version(int n, RandomForest f, String s) {
+            number = n;
+            forest = f;
+            source = s;
+            publishedMillis = System.currentTimeMillis();
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public RandomForest getForest() {
+            return forest;
+        }
+
+        public String toString() {
+            return "version " + number + " (" + source + ", " + forest.getNumTrees() + " trees)";
+        }
+    }
+
+    private final AtomicReference<Version> current = new AtomicReference<Version>();
+    private final ArrayDeque<Version> previous = new ArrayDeque<Version>(); // replaced versions, most recent first
+    private final int keepVersions; // number of replaced versions kept for rollback
+    private BitDataset warmupRows; // rows scored to warm up a forest before it is published, null for random rows
+    private int lastNumber = 0;
+    private volatile long warmupSink; // result of the warm-up scoring, kept so the JIT cannot drop the work
+
+    // Constructor, keep is the number of replaced versions kept for rollback (0 for none)
+    public ModelRegistry(int keep) {
+        if (keep < 0)
+            throw new IllegalArgumentException("the number of versions to keep cannot be negative");
+        keepVersions = keep;
+    }
+
+    // Sets the rows a new forest is warmed up on (for example a sample of recent requests, coded with the bins of the
+    // forests to be published; a forest coding its features differently is warmed up on random rows)
+    public synchronized void setWarmupRows(BitDataset rows) {
+        warmupRows = rows;
+    }
+
+    // Loads a model file, warms it up and publishes it
+    public Version load(String file) throws IOException {
+        return publish(RandomForest.load(file), file);
+    }
+
+    /**
+     * Warms up a trained forest and makes it the current version. Calls already scoring with the old version
+     * finish on it; the old version is kept for rollback
+     * @param forest: trained forest, must expect the same number of features as the current one and code them the
+     * same way (the same FeatureBins), so rows coded for the current forest mean the same to it
+     * @param source: description of where the forest came from
+     * @return the published version
+     */
+    public synchronized Version publish(RandomForest forest, String source) {
+        if (forest.getCompiledForest() == null)
+            throw new IllegalArgumentException("the forest has not been trained");
+        Version old = current.get();
+        if (old != null && old.forest.getNumFeatures() != forest.getNumFeatures())
+            throw new IllegalArgumentException("the forest expects " + forest.getNumFeatures() + " features but the current one expects " + old.forest.getNumFeatures());
+        if (old != null && !FeatureBins.sameCoding(old.forest.getBins(), forest.getBins()))
+            throw new IllegalArgumentException("the forest codes its numeric or categorical features differently from the current one");
+
+        warmUp(forest);
+        Version version = new Version(++lastNumber, forest, source);
+        current.set(version);
+        if (old != null && keepVersions > 0){
+            previous.addFirst(old);
+            if (previous.size() > keepVersions)
+                previous.removeLast();
+        }
+        return version;
+    }
+
+    // Makes the most recently replaced version current again, the version it replaces is dropped
+    public synchronized Version rollback() {
+        Version version = previous.pollFirst();
+        if (version == null)
+            throw new IllegalStateException("no earlier version to roll back to");
+        current.set(version);
+        return version;
+    }
+
+    // Scores the warm-up rows through the batch and single row paths so the new node arrays are in cache and the
+    // scoring code is compiled before the first real request reaches the forest
+    private void warmUp(RandomForest forest) {
+        BitDataset rows = warmupRows;
+        if (rows == null || rows.getNumFeatures() != forest.getNumFeatures() || !FeatureBins.sameCoding(rows.getBins(), forest.getBins()))
+            rows = randomRows(WARMUP_ROWS, forest.getNumFeatures(), forest.getBins());
+        long sink = 0;
+        for (int round=0; round<WARMUP_ROUNDS; round++){
+            for (long word : forest.evaluateBatch(rows))
+                sink += word;
+            for (int row=0; row<rows.getNumRows(); row++){
+                if (forest.evaluateRow(rows, row))
+                    sink++;
+            }
+        }
+        warmupSink = sink;
+    }
+
+    // Rows with random feature values, numeric and categorical features get random codes of bins so the rows take the
+    // coded scoring path real requests take
+    private static BitDataset randomRows(int numRows, int numFeatures, FeatureBins bins) {
+        Random rand = new Random(numRows);
+        BitDataset rows = new BitDataset(numRows, numFeatures);
+        rows.setBins(bins);
+        for (int row=0; row<numRows; row++){
+            for (int f=0; f<numFeatures; f++){
+                if (rows.isCoded(f))
+                    rows.setCode(row, f, rand.nextInt(rows.getNumBins(f)));
+                else if (rand.nextBoolean())
+                    rows.setFeatureValue(row, f, true);
+            }
+        }
+        return rows;
+    }
+
+    // Returns the current version, null before anything is published
+    public Version current() {
+        return current.get();
+    }
+
+    // Returns the versions kept for rollback, most recent first
+    public synchronized List<Version> getPreviousVersions() {
+        return new ArrayList<Version>(previous);
+    }
+
+    // Returns the number of features the current forest expects
+    public int getNumFeatures() {
+        return require().forest.getNumFeatures();
+    }
+
+    // Evaluates an example with the current forest
+    public boolean evaluateExample(Example ex) {
+        return require().forest.evaluateExample(ex);
+    }
+
+    // Evaluates one row of a columnar dataset with the current forest
+    public boolean evaluateRow(BitDataset d, int row) {
+        return require().forest.evaluateRow(d, row);
+    }
+
+    // Evaluates every row of a columnar dataset with the current forest, see RandomForest.evaluateBatch()
+    public long[] evaluateBatch(BitDataset d) {
+        return require().forest.evaluateBatch(d);
+    }
+
+    private Version require() {
+        Version version = current.get();
+        if (version == null)
+            throw new IllegalStateException("no model has been published");
+        return version;
+    }
+}
@@ -3,18 +3,52 @@
  * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
  * 
  * RandomForest object represents a collection of DecisionTrees that are generated in trainForest() method 
+ * A trained forest can be saved to a model file and loaded again without retraining. Model file layout (little endian):
+ * magic, version, numTrees, numTotalFeatures, maxNumFeatures, maxTreeDepth, minSamplesSplit, seed, feature names,
+ * per-tree OOB errors, forest OOB error, seed index of the next updated tree, feature bins (a flag, then the
+ * FeatureBins when the forest has numeric or categorical features), then the node arrays of the CompiledForest
  */
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 
 public class RandomForest {
 
+    static final int MODEL_MAGIC = 0x4d444652; // "RFDM" read as little endian bytes
+    static final int MODEL_VERSION = 5; // version 2 added the forest OOB error, version 3 the node class counts, version 4 the seed index of the next updated tree, version 5 feature bins and split thresholds
+
     private ArrayList<DecisionTree> trees = new ArrayList<DecisionTree>(); 
+    private volatile CompiledForest compiled; // flat-array copy of the trees used for prediction, built after training (replaced as a whole by update())
     private ArrayList<Double> outOfBagErrors = new ArrayList<Double>(); // stores each OOB error calculated from a decision tree in the forest 
-    static Random rand = new Random();
+    static Random rand = new Random(); // only used to pick a seed when the user does not set one
+    private long seed = rand.nextLong(); // base seed, every tree derives its own generator from it
+
+    // forest-level out-of-bag votes, updated as each tree is added to the forest
+    private int[] oobVotesPos; // oobVotesPos[row] = number of trees not trained on row that classify it as positive
+    private int[] oobVotesTotal; // oobVotesTotal[row] = number of trees not trained on row
+    private int oobRowsCovered; // rows with at least one OOB vote
+    private int oobRowsWrong; // covered rows whose OOB majority vote is wrong
+    private ArrayList<Double> forestOobErrors = new ArrayList<Double>(); // forest OOB error after each tree was added
+    private double finalForestOobError = Double.NaN; // forest OOB error of a forest loaded from a model file
+    private BootstrapCache bootstraps; // shared bootstrap samples (hyperparameter sweeps), null to draw them per tree
+    private int nextTreeIndex; // seed index of the next tree trained by update(), after every index trainForest() may use
+    private boolean levelWise = false; // trees are built one depth at a time (see DecisionTree.setLevelWise())
+    private DecisionTree.SplitCriterion criterion = DecisionTree.SplitCriterion.ENTROPY; // impurity measure of the splits
+    private int parallelSplitRows = 0; // nodes with at least this many rows count their split candidates in parallel (see DecisionTree.setParallelSplit()), 0 = never
+    private final List<ForestListener> listeners = new CopyOnWriteArrayList<ForestListener>(); // told about training and batch scoring
+    private long trainingStart; // System.nanoTime() when the current training started
+    private int oobStopWindow = 0; // early stop: number of trees over which the OOB error must settle (0 = off)
+    private double oobStopTolerance = 0; // early stop: largest OOB error change over the window that counts as settled
 
-    private ArrayList<Example> examples = new ArrayList<Example>(); // stores all the examples used for training the RandomForest
+    private final BitDataset data; // stores all the examples used for training the RandomForest, column by column (null for loaded models)
+    private final String[] featureNames; // names of the features the forest was trained on
+    private final FeatureBins bins; // how numeric and categorical features are coded, null when all features are boolean
+    private volatile FeatureBins checkedBins; // bins of the last scored dataset found to code features like bins
 
     // parameters for RandomForest object that are initialized in GeneralClassifier.java by user 
     private final int numTrees;
@@ -25,53 +59,655 @@ public class RandomForest {
 
     // Constructor for RandomForest object
     public RandomForest(ArrayList<Example> ex, int size, int numTotalFeat, int maxNumFeat, int treeDepth, int minSamp) {
-        examples = ex;
+        this(BitDataset.fromExamples(ex, numTotalFeat), size, maxNumFeat, treeDepth, minSamp);
+    }
+
+    // Constructor for RandomForest object trained directly on a columnar dataset
+    public RandomForest(BitDataset d, int size, int maxNumFeat, int treeDepth, int minSamp) {
+        data = d;
         numTrees = size;
-        numTotalFeatures = numTotalFeat;
+        numTotalFeatures = d.getNumFeatures();
+        maxNumFeatures = maxNumFeat;
+        maxTreeDepth = treeDepth;
+        minSamplesSplit = minSamp;
+        nextTreeIndex = size;
+        bins = d.getBins();
+        featureNames = new String[numTotalFeatures];
+        for (int f=0; f<numTotalFeatures; f++)
+            featureNames[f] = d.getFeatureName(f);
+    }
+
+    // Constructor for a RandomForest read back from a model file, it can classify but not be retrained
+    private RandomForest(CompiledForest c, String[] names, FeatureBins b, int maxNumFeat, int treeDepth, int minSamp, long s) {
+        data = null;
+        compiled = c;
+        bins = b;
+        numTrees = c.getNumTrees();
+        numTotalFeatures = names.length;
+        featureNames = names;
         maxNumFeatures = maxNumFeat;
         maxTreeDepth = treeDepth;
         minSamplesSplit = minSamp;
+        nextTreeIndex = numTrees; // load() restores the saved index
+        seed = s;
+    }
+
+    // Saves the trained forest (parameters, feature names, OOB errors, the seed index of the next tree update() trains
+    // and compiled trees) to a model file
+    public void save(String file) throws IOException {
+        if (compiled == null)
+            throw new IllegalStateException("the forest has not been trained");
+
+        byte[][] names = new byte[numTotalFeatures][];
+        int size = 52 + 8 * outOfBagErrors.size(); // fixed fields, OOB error count and errors, forest OOB error, next tree index
+        for (int f=0; f<numTotalFeatures; f++){
+            names[f] = featureNames[f].getBytes(StandardCharsets.UTF_8);
+            size += 4 + names[f].length;
+        }
+        size += 4 + (bins != null ? bins.byteSize() : 0);
+        size += compiled.byteSize();
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MODEL_MAGIC).putInt(MODEL_VERSION);
+        buffer.putInt(compiled.getNumTrees()).putInt(numTotalFeatures).putInt(maxNumFeatures).putInt(maxTreeDepth).putInt(minSamplesSplit);
+        buffer.putLong(seed);
+        for (byte[] name : names)
+            buffer.putInt(name.length).put(name);
+        buffer.putInt(outOfBagErrors.size());
+        for (double error : outOfBagErrors)
+            buffer.putDouble(error);
+        buffer.putDouble(calcForestOobError());
+        buffer.putInt(nextTreeIndex);
+        buffer.putInt(bins != null ? 1 : 0);
+        if (bins != null)
+            bins.write(buffer);
+        compiled.write(buffer);
+        buffer.flip();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+
+    // Loads a forest saved with save(). The file is memory-mapped and its node arrays are copied straight into
+    // the compiled (flat-array) layout used for prediction, no trees are rebuilt
+    public static RandomForest load(String file) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)){
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                if (buffer.getInt() != MODEL_MAGIC)
+                    throw new IOException(file + ": not a random forest model file");
+                int version = buffer.getInt();
+                if (version < 1 || version > MODEL_VERSION)
+                    throw new IOException(file + ": unsupported model version " + version);
+
+                int size = buffer.getInt();
+                int totalFeat = buffer.getInt();
+                int maxNumFeat = buffer.getInt();
+                int treeDepth = buffer.getInt();
+                int minSamp = buffer.getInt();
+                long s = buffer.getLong();
+
+                String[] names = new String[totalFeat];
+                for (int f=0; f<totalFeat; f++){
+                    byte[] name = new byte[buffer.getInt()];
+                    buffer.get(name);
+                    names[f] = new String(name, StandardCharsets.UTF_8);
+                }
+                double[] errors = new double[buffer.getInt()];
+                buffer.asDoubleBuffer().get(errors);
+                buffer.position(buffer.position() + 8 * errors.length);
+                double forestOobError = version >= 2 ? buffer.getDouble() : Double.NaN;
+                int nextTree = version >= 4 ? buffer.getInt() : size; // older files start update() seeds after the trees
+                if (nextTree < size)
+                    throw new IOException(file + ": next tree index " + nextTree + " is below the " + size + " trees of the model");
+
+                FeatureBins b = version >= 5 && buffer.getInt() != 0 ? FeatureBins.read(buffer) : null;
+                if (b != null && b.getNumFeatures() != totalFeat)
+                    throw new IOException(file + ": model has bins for " + b.getNumFeatures() + " features but " + totalFeat + " features");
+
+                CompiledForest c;
+                try {
+                    c = CompiledForest.read(buffer, version, totalFeat);
+                }
+                catch (IOException e) {
+                    throw new IOException(file + ": corrupt model file, " + e.getMessage(), e);
+                }
+                if (c.getNumTrees() != size)
+                    throw new IOException(file + ": model has " + c.getNumTrees() + " trees but its header says " + size);
+
+                RandomForest forest = new RandomForest(c, names, b, maxNumFeat, treeDepth, minSamp, s);
+                for (double error : errors)
+                    forest.outOfBagErrors.add(error);
+                forest.finalForestOobError = forestOobError;
+                forest.nextTreeIndex = nextTree;
+                return forest;
+            }
+            catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+                throw new IOException(file + ": truncated model file", e);
+            }
+        }
+    }
+
+    // Sets the base seed of the forest. The same seed always produces the same forest, whatever the number of threads
+    public void setSeed(long s) {
+        seed = s;
+    }
+
+    // Builds the trees one depth at a time instead of depth-first, see DecisionTree.setLevelWise()
+    public void setLevelWise(boolean l) {
+        levelWise = l;
+    }
+
+    // Sets the impurity measure the trees score their splits with (entropy by default), see DecisionTree.setCriterion()
+    public void setCriterion(DecisionTree.SplitCriterion c) {
+        criterion = c;
+    }
+
+    // Counts the split candidates of nodes with at least minRows rows in parallel, see DecisionTree.setParallelSplit()
+    // The tasks run on the pool the trees are trained in, so a forest of a few deep trees still uses every thread
+    public void setParallelSplit(int minRows) {
+        if (minRows < 0)
+            throw new IllegalArgumentException("minRows cannot be negative");
+        parallelSplitRows = minRows;
+    }
+
+    // Adds a listener that is told about every tree added to the forest, finished training and batch scoring
+    // (see ForestListener; ForestMetrics publishes the totals over JMX)
+    public void addListener(ForestListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ForestListener listener) {
+        listeners.remove(listener);
+    }
+
+    // Stops adding trees once the forest OOB error changed by at most tolerance over the last window trees
+    // (window 0 turns early stopping off). The stopping point only depends on the seed, not on the number of threads
+    public void setOobEarlyStop(int window, double tolerance) {
+        oobStopWindow = window;
+        oobStopTolerance = tolerance;
     }
 
-    // Trains the RandomForest on the training examples 
+    // Trains the RandomForest on the training examples, one tree after another on the calling thread
     public void trainForest() {
+        startTraining();
 
         for (int i=0; i<numTrees; i++){ // one tree from the forest at a time
-            ArrayList<Example> bootstrapEx = bootstrap(); // subsamples training data using bootstrapping 
+            if (addTree(trainTree(i))) // OOB error has settled
+                break;
+        }
+        compiled = CompiledForest.compile(trees);
+        finishTraining();
+    }
 
-            DecisionTree tree = new DecisionTree(numTotalFeatures, maxNumFeatures, maxTreeDepth, minSamplesSplit); 
-            tree.train(bootstrapEx); 
-            trees.add(tree);
-            ArrayList<Example> oobEx = getOobEx(bootstrapEx); // stores OOB examples not subsampled during bootstrapping
-            double oobScore = calcOobScore(oobEx, tree); // calculates OOB error using OOB examples 
-            outOfBagErrors.add(oobScore); 
+    // Trains the RandomForest using numThreads threads of a private ForkJoinPool
+    public void trainForest(int numThreads) {
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            trainForest(pool);
+        }
+        finally {
+            pool.shutdown();
         }
     }
 
-    // Evaluates an example using the trained RandomFOrest object 
-    // Returns the majority classification (positive or negative) of all the trees in the forest 
-    public Boolean evaluateExample(Example ex) {
-        int numTrue = 0;
-        int numFalse = 0;
-        boolean finalAnswer = true;
-
-        for(int i=0; i<numTrees; i++){
-            DecisionTree tree = trees.get(i);
-            Boolean answer = tree.classify(ex);
-            if(answer == true){ // DecisionTree classifies example as positive 
-                numTrue++;
+    // Trains the RandomForest with the trees built concurrently on the given executor
+    // Tree i is always built from the generator of seed i, so the result does not depend on scheduling
+    public void trainForest(ExecutorService pool) {
+        startTraining();
+
+        // with early stopping, trees are submitted a window at a time so little work is wasted once the OOB error settles
+        int wave = oobStopWindow > 0 ? oobStopWindow : numTrees;
+        boolean stop = false;
+        for (int first=0; first<numTrees && !stop; first+=wave){
+            ArrayList<Future<TreeResult>> results = new ArrayList<Future<TreeResult>>();
+            for (int i=first; i<Math.min(first + wave, numTrees); i++){
+                final int treeIndex = i;
+                results.add(pool.submit(() -> trainTree(treeIndex))); // bootstrap, training and OOB scoring of one tree
             }
-            else{ // DecisionTree classifies example as negative
-                numFalse++;
+
+            for (Future<TreeResult> future : results){ // collect trees in index order
+                if (stop)
+                    future.cancel(false);
+                else
+                    stop = addTree(getResult(future));
             }
         }
-        if(numFalse > numTrue){ // majority of forest classifies example as negative 
-            finalAnswer = false; // update finalAnswer (initialized as true) to false 
+        compiled = CompiledForest.compile(trees);
+        finishTraining();
+    }
+
+    /**
+     * Trains the RandomForest on worker processes (see ForestWorker): the trees are split into ranges of tree indices
+     * that the workers train and stream back, and the coordinator adds them in index order. Tree i gets the same seed
+     * as in trainForest(), so the forest is the same as one trained in this process. With early stopping the trees
+     * are handed out a window at a time, as in trainForest(pool), so the workers stop once the OOB error settles
+     * @param workers: addresses of running ForestWorker processes
+     * @param dataFile: the training data file as the workers can read it (the data of this forest must be read from it)
+     */
+    public void trainForest(List<java.net.InetSocketAddress> workers, String dataFile) {
+        startTraining();
+        ForestCoordinator coordinator = new ForestCoordinator(dataFile, seed, maxNumFeatures, maxTreeDepth, minSamplesSplit, levelWise, criterion, parallelSplitRows);
+        int wave = oobStopWindow > 0 ? oobStopWindow : numTrees;
+        ArrayList<CompiledForest> compiledTrees = new ArrayList<CompiledForest>();
+        boolean stop = false;
+        for (int first=0; first<numTrees && !stop; first+=wave){
+            TreeResult[] results = coordinator.train(workers, first, Math.min(wave, numTrees - first), data.getNumRows(), numTotalFeatures);
+            for (TreeResult result : results){
+                compiledTrees.add(result.compiledTree);
+                if (addTree(result)){ // OOB error has settled
+                    stop = true;
+                    break;
+                }
+            }
         }
-        return finalAnswer;
+        compiled = CompiledForest.concat(compiledTrees);
+        finishTraining();
+    }
+
+    // Clears any previous training and the OOB vote counts
+    private void startTraining() {
+        checkTrainable();
+        trainingStart = System.nanoTime();
+        trees.clear();
+        outOfBagErrors.clear();
+        forestOobErrors.clear();
+        oobVotesPos = new int[data.getNumRows()];
+        oobVotesTotal = new int[data.getNumRows()];
+        oobRowsCovered = 0;
+        oobRowsWrong = 0;
+    }
+
+    // Tells the listeners that the forest is trained
+    private void finishTraining() {
+        long nanos = System.nanoTime() - trainingStart;
+        for (ForestListener listener : listeners)
+            listener.forestTrained(compiled.getNumTrees(), nanos);
+    }
+
+    // Tells the listeners about a tree added to the forest
+    private void treeAdded(TreeResult result) {
+        for (ForestListener listener : listeners)
+            listener.treeTrained(result.stats);
     }
 
-     // calculates the average out of bag error score for a random forest 
+    // Adds a trained tree to the forest and folds its OOB predictions into the forest OOB votes
+    // Returns true when early stopping says no more trees are needed
+    private boolean addTree(TreeResult result) {
+        treeAdded(result);
+        if (result.tree != null) // trees from worker processes only exist in compiled form
+            trees.add(result.tree);
+        outOfBagErrors.add(result.oobScore);
+
+        for (int i=0; i<result.oobRows.length; i++){
+            int row = result.oobRows[i];
+            boolean actual = data.getLabel(row);
+            if (oobVotesTotal[row] > 0){ // row was already covered, remove its old status
+                if (oobMajority(row) != actual)
+                    oobRowsWrong--;
+            }
+            else{
+                oobRowsCovered++;
+            }
+            oobVotesTotal[row]++;
+            if (result.oobPredictions[i])
+                oobVotesPos[row]++;
+            if (oobMajority(row) != actual)
+                oobRowsWrong++;
+        }
+        forestOobErrors.add(calcForestOobError());
+
+        int n = forestOobErrors.size();
+        return oobStopWindow > 0 && n > oobStopWindow
+            && Math.abs(forestOobErrors.get(n - 1) - forestOobErrors.get(n - 1 - oobStopWindow)) <= oobStopTolerance;
+    }
+
+    // OOB majority vote of a training row (ties count as positive, as in evaluateExample())
+    private boolean oobMajority(int row) {
+        return oobVotesPos[row] >= oobVotesTotal[row] - oobVotesPos[row];
+    }
+
+    // Models loaded from a file keep no training data
+    private void checkTrainable() {
+        if (data == null)
+            throw new IllegalStateException("a forest loaded from a model file cannot be retrained");
+    }
+
+    // Bootstraps, trains and scores (OOB) the tree with index treeIndex using its own random number generator
+    TreeResult trainTree(int treeIndex) {
+        // the bootstrap sample and the feature choices of a tree come from two separate generators, so a bootstrap
+        // sample can be shared by forests with different parameters and still give the same trees as drawing it here
+        long start = System.nanoTime();
+        int[] inBagCounts = bootstraps != null ? bootstraps.get(treeIndex) : bootstrap(data.getNumRows(), new Random(treeSeed(seed, treeIndex))); // subsamples training data using bootstrapping
+        return trainTree(data, inBagCounts, treeIndex, System.nanoTime() - start);
+    }
+
+    // Trains and scores (OOB) the tree with index treeIndex on the rows of d drawn inBagCounts times
+    // (bootstrapNanos is the time drawing inBagCounts took, for the tree's stats)
+    private TreeResult trainTree(BitDataset d, int[] inBagCounts, int treeIndex, long bootstrapNanos) {
+        Random treeRand = new Random(treeSeed(seed, treeIndex) ^ FEATURE_STREAM);
+
+        DecisionTree tree = new DecisionTree(numTotalFeatures, maxNumFeatures, maxTreeDepth, minSamplesSplit, treeRand);
+        tree.setLevelWise(levelWise);
+        tree.setParallelSplit(parallelSplitRows);
+        tree.setCriterion(criterion);
+        tree.train(d, inBagCounts); // rows drawn several times are weighted, not copied
+        long oobStart = System.nanoTime();
+        int[] oobRows = getOobRows(inBagCounts); // stores OOB rows not subsampled during bootstrapping
+        boolean[] oobPredictions = new boolean[oobRows.length];
+        for (int i=0; i<oobRows.length; i++)
+            oobPredictions[i] = tree.classify(d, oobRows[i]);
+        double oobScore = calcOobScore(d, oobRows, oobPredictions); // calculates OOB error using OOB examples
+        TreeStats stats = new TreeStats(treeIndex, tree.getTrainNanos(), bootstrapNanos, System.nanoTime() - oobStart,
+            tree.getNumNodes(), tree.getNumLeaves(), tree.getDepth(), tree.getSplitEvaluations());
+        return new TreeResult(tree, oobRows, oobPredictions, oobScore, stats);
+    }
+
+    /**
+     * Folds a window of new labelled rows into the trained (or loaded) forest without retraining it: every tree is
+     * scored on the window, the numReplace trees with the highest error on it are replaced by trees trained on
+     * bootstrap samples of the window, and the flat-array forest is rebuilt around the kept trees. The cost depends
+     * on the window size and numReplace, not on the data the forest was trained on before.
+     * Afterwards calcForestOobError() is the OOB error on the window: the kept trees never saw it, and each new tree
+     * votes on the window rows it did not draw (when every tree is replaced and every row was drawn by every new tree,
+     * no row is out-of-bag and the error of the updated forest on the window stands in)
+     * @param window: new labelled rows with the features of the forest
+     * @param numReplace: number of trees to replace (0 to numTrees)
+     * @return the error of the forest on the window before the update
+     */
+    public synchronized double update(BitDataset window, int numReplace) {
+        CompiledForest c = compiled;
+        if (c == null)
+            throw new IllegalStateException("the forest has not been trained");
+        if (window.getNumFeatures() != numTotalFeatures)
+            throw new IllegalArgumentException("window has " + window.getNumFeatures() + " features but the forest expects " + numTotalFeatures);
+        if (!FeatureBins.sameCoding(window.getBins(), bins))
+            throw new IllegalArgumentException("window must be coded with the bins of the forest (see getBins())");
+        int n = c.getNumTrees();
+        int numRows = window.getNumRows();
+        if (numReplace < 0 || numReplace > n)
+            throw new IllegalArgumentException("numReplace must be between 0 and " + n);
+        if (numRows == 0)
+            throw new IllegalArgumentException("window has no rows");
+        long updateStart = System.nanoTime();
+
+        // error of every tree on the window, and the votes of the forest as it is
+        int[] votesPos = new int[numRows];
+        long[] order = new long[n]; // (rows the tree got right) << 32 | tree, sorted ascending puts the worst tree first
+        for (int t=0; t<n; t++){
+            int wrong = 0;
+            for (int row=0; row<numRows; row++){
+                boolean pred = c.classify(t, window, row);
+                if (pred)
+                    votesPos[row]++;
+                if (pred != window.getLabel(row))
+                    wrong++;
+            }
+            order[t] = (long) (numRows - wrong) << 32 | t;
+        }
+        int wrongBefore = 0;
+        for (int row=0; row<numRows; row++){
+            if ((votesPos[row] >= n - votesPos[row]) != window.getLabel(row))
+                wrongBefore++;
+        }
+        Arrays.sort(order); // worst first, ties keep the lower index first
+
+        // replace the worst trees, their votes on the window leave the OOB votes
+        int[] replaced = new int[numReplace];
+        int[] votesTotal = new int[numRows];
+        Arrays.fill(votesTotal, n);
+        ArrayList<DecisionTree> newTrees = new ArrayList<DecisionTree>();
+        for (int j=0; j<numReplace; j++){
+            int t = (int) order[j];
+            replaced[j] = t;
+            for (int row=0; row<numRows; row++){
+                votesTotal[row]--;
+                if (c.classify(t, window, row))
+                    votesPos[row]--;
+            }
+            int treeIndex = nextTreeIndex++;
+            long bootstrapStart = System.nanoTime();
+            int[] inBagCounts = bootstrap(numRows, new Random(treeSeed(seed, treeIndex)));
+            TreeResult result = trainTree(window, inBagCounts, treeIndex, System.nanoTime() - bootstrapStart);
+            treeAdded(result);
+            newTrees.add(result.tree);
+            for (int i=0; i<result.oobRows.length; i++){
+                int row = result.oobRows[i];
+                votesTotal[row]++;
+                if (result.oobPredictions[i])
+                    votesPos[row]++;
+            }
+            if (trees.size() == n)
+                trees.set(t, result.tree);
+            if (outOfBagErrors.size() == n)
+                outOfBagErrors.set(t, result.oobScore);
+        }
+        compiled = c.replaceTrees(replaced, newTrees);
+        for (ForestListener listener : listeners)
+            listener.forestTrained(numReplace, System.nanoTime() - updateStart);
+
+        // the OOB votes of the original training rows no longer describe this forest
+        oobVotesPos = null;
+        oobVotesTotal = null;
+        int covered = 0;
+        int wrong = 0;
+        for (int row=0; row<numRows; row++){
+            if (votesTotal[row] == 0)
+                continue;
+            covered++;
+            if ((votesPos[row] >= votesTotal[row] - votesPos[row]) != window.getLabel(row))
+                wrong++;
+        }
+        if (covered == 0){ // no row is out-of-bag for any tree
+            long[] predictions = compiled.predictBatch(window);
+            for (int row=0; row<numRows; row++){
+                if (((predictions[row >>> 6] >>> row & 1L) != 0) != window.getLabel(row))
+                    wrong++;
+            }
+            covered = numRows;
+        }
+        finalForestOobError = wrong / (double) covered;
+        return wrongBefore / (double) numRows;
+    }
+
+    // Waits for a tree trained by the executor and rethrows anything that went wrong while training it
+    private static TreeResult getResult(Future<TreeResult> future) {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while training forest", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("tree training failed", e.getCause());
+        }
+    }
+
+    // Makes the forest take its bootstrap samples from cache (and its seed from the cache) instead of drawing them
+    void useBootstrapCache(BootstrapCache cache) {
+        if (cache.getNumRows() != data.getNumRows())
+            throw new IllegalArgumentException("bootstrap cache is for " + cache.getNumRows() + " rows, not " + data.getNumRows());
+        bootstraps = cache;
+        seed = cache.getSeed();
+    }
+
+    static final long FEATURE_STREAM = 0x5DEECE66DL; // separates the feature sampling generator of a tree from its bootstrap generator
+
+    // Derives the seed of tree treeIndex from the forest seed (SplitMix64 finalizer, so neighbouring trees get unrelated seeds)
+    static long treeSeed(long forestSeed, int treeIndex) {
+        long z = forestSeed + (treeIndex + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // A trained tree together with its out-of-bag rows, its predictions for them and its out-of-bag error
+    // Trees trained by a worker process arrive already compiled (tree is null, compiledTree holds the one tree)
+    static class TreeResult {
+        final DecisionTree tree;
+        final CompiledForest compiledTree;
+        final int[] oobRows;
+        final boolean[] oobPredictions;
+        final double oobScore;
+        final TreeStats stats; // how long the tree took and its shape, for the listeners
+
+        TreeResult(DecisionTree t, int[] rows, boolean[] predictions, double score, TreeStats s) {
+            this(t, null, rows, predictions, score, s);
+        }
+
+        TreeResult(DecisionTree t, CompiledForest c, int[] rows, boolean[] predictions, double score, TreeStats s) {
+            tree = t;
+            compiledTree = c;
+            oobRows = rows;
+            oobPredictions = predictions;
+            oobScore = score;
+            stats = s;
+        }
+    }
+
+    // Evaluates one row of a columnar dataset using the trained RandomForest object
+    // Returns the majority classification (positive or negative) of all the trees in the forest
+    public boolean evaluateRow(BitDataset d, int row) {
+        checkData(d);
+        return compiled.evaluateRow(d, row);
+    }
+
+    // Evaluates an example using the trained RandomFOrest object 
+    // Returns the majority classification (positive or negative) of all the trees in the forest 
+    public boolean evaluateExample(Example ex) {
+        checkExample(ex);
+        return compiled.evaluateExample(ex);
+    }
+
+    // Throws when the forest has numeric or categorical features but ex carries no codes for them
+    private void checkExample(Example ex) {
+        if (bins != null && bins.hasCodedFeatures() && !ex.hasCodes())
+            throw new IllegalStateException("the forest has numeric or categorical features, set their codes on the example (see FeatureBins.encode())");
+    }
+
+    // Throws when the rows of d are not coded with the bins of the forest, they would be scored with the wrong codes
+    // (the last bins that passed are remembered, so scoring row by row does not compare the bins every time)
+    private void checkData(BitDataset d) {
+        FeatureBins b = d.getBins();
+        if (b == bins || (b != null && b == checkedBins))
+            return;
+        if (!FeatureBins.sameCoding(b, bins))
+            throw new IllegalArgumentException("the rows are coded with different bins than the forest, read them with getBins() (see DatasetReader.read(file, bins))");
+        checkedBins = b;
+    }
+
+    // Evaluates an example, stopping once the majority is decided or is right with probability at least 1 - delta
+    // (see CompiledForest.evaluateExample(Example, double)); delta 0 gives the same answer as evaluateExample(ex)
+    public boolean evaluateExample(Example ex, double delta) {
+        checkExample(ex);
+        return compiled.evaluateExample(ex, delta);
+    }
+
+    // Same as evaluateExample(ex, delta) for one row of a columnar dataset
+    public boolean evaluateRow(BitDataset d, int row, double delta) {
+        checkData(d);
+        return compiled.evaluateRow(d, row, delta);
+    }
+
+    // Returns the fraction of trees voting positive for an example
+    public double voteFraction(Example ex) {
+        checkExample(ex);
+        return compiled.countVotes(ex) / (double) compiled.getNumTrees();
+    }
+
+    // Returns the fraction of trees voting positive for one row of a columnar dataset
+    public double voteFraction(BitDataset d, int row) {
+        checkData(d);
+        return compiled.countVotes(d, row) / (double) compiled.getNumTrees();
+    }
+
+    // Returns the probability that an example is positive, from the class frequencies of the leaves it reaches
+    public double predictProbability(Example ex) {
+        checkExample(ex);
+        return compiled.predictProbability(ex);
+    }
+
+    // Same as predictProbability(ex) for one row of a columnar dataset
+    public double predictProbability(BitDataset d, int row) {
+        checkData(d);
+        return compiled.predictProbability(d, row);
+    }
+
+    // Evaluates every row of a columnar dataset at once, walking each tree over a block of rows at a time
+    // Returns the majority classifications packed one bit per row (bit row of word row / 64)
+    public long[] evaluateBatch(BitDataset d) {
+        checkData(d);
+        if (listeners.isEmpty())
+            return compiled.predictBatch(d);
+        long start = System.nanoTime();
+        long[] predictions = compiled.predictBatch(d);
+        batchScored(d.getNumRows(), System.nanoTime() - start);
+        return predictions;
+    }
+
+    // Returns the number of trees of the forest voting positive for every row of a columnar dataset
+    public int[] countVotes(BitDataset d) {
+        checkData(d);
+        if (listeners.isEmpty())
+            return compiled.countVotes(d);
+        long start = System.nanoTime();
+        int[] votes = compiled.countVotes(d);
+        batchScored(d.getNumRows(), System.nanoTime() - start);
+        return votes;
+    }
+
+    // Tells the listeners about a scored batch (single row scoring is too fast to time per call)
+    private void batchScored(int numRows, long nanos) {
+        for (ForestListener listener : listeners)
+            listener.batchScored(numRows, nanos);
+    }
+
+    // returns the name of feature f
+    public String getFeatureName(int f) {
+        return featureNames[f];
+    }
+
+    // returns the number of features the forest expects
+    public int getNumFeatures() {
+        return numTotalFeatures;
+    }
+
+    // Returns how the numeric and categorical features of the training data were coded (null when all features are
+    // boolean); data scored by the forest must be read with the same bins, see DatasetReader.read(file, bins)
+    public FeatureBins getBins() {
+        return bins;
+    }
+
+    // Returns the flat-array form of the trained forest
+    public CompiledForest getCompiledForest() {
+        return compiled;
+    }
+
+    // Returns the forest out of bag error: the fraction of training rows (among those left out by at least one tree)
+    // whose majority vote over the trees not trained on them is wrong. Can be called at any point during training
+    public double calcForestOobError() {
+        if (oobVotesPos == null) // loaded from a model file, or updated since training
+            return finalForestOobError;
+        return Double.valueOf(oobRowsWrong) / Double.valueOf(oobRowsCovered);
+    }
+
+    // Returns the forest OOB error after each tree was added
+    public List<Double> getForestOobErrors() {
+        return Collections.unmodifiableList(forestOobErrors);
+    }
+
+    // returns the number of trees in the trained forest (fewer than requested when training stopped early)
+    public int getNumTrees() {
+        return compiled != null ? compiled.getNumTrees() : outOfBagErrors.size();
+    }
+
+     // calculates the average out of bag error score of the single trees of a random forest
      public double calcMeanOobScore() {
         int n = outOfBagErrors.size(); // should be same as numTrees
         double sum = 0;
@@ -84,39 +720,40 @@ public class RandomForest {
         return sum / Double.valueOf(n); // calculates average of all OOB scores from forest 
     }
 
-    // Randomly generate bootstrap examples
-    private ArrayList<Example> bootstrap() {
-        ArrayList<Example> bootstrapExamples = new ArrayList<Example>();
-        int n = examples.size();
+    // Randomly generate bootstrap examples (n draws out of n rows) using the bootstrap generator of the tree being built
+    // Returns how many times each row of the training data was drawn (its in-bag count)
+    static int[] bootstrap(int n, Random rand) {
+        int[] inBagCounts = new int[n];
         for(int i = 0; i < n; i++){
-            int index = rand.nextInt(n); // random index (replacement allowed in bootstrapping)
-            Example ex = examples.get(index);
-            bootstrapExamples.add(ex);
+            inBagCounts[rand.nextInt(n)]++; // random index (replacement allowed in bootstrapping)
         }
-        return bootstrapExamples;
+        return inBagCounts;
     }
     
-    // get out-of-bag samples for a given tree
-    private ArrayList<Example> getOobEx(ArrayList<Example> bootstrapEx) {
-        ArrayList<Example> oobData = new ArrayList<Example>();
-        int n = examples.size();
+    // get out-of-bag rows (rows never drawn) for a given tree in one pass over the in-bag counts
+    private int[] getOobRows(int[] inBagCounts) {
+        int n = inBagCounts.length;
+        int numOob = 0;
         for(int i=0; i<n; i++){
-            Example currEx = examples.get(i);
-            if(!bootstrapEx.contains(currEx)){ // current example not in bootstrapped subsample of all examples 
-                oobData.add(currEx); // add current example to list of OOB examples for later calculation of OOB error
-            }
+            if(inBagCounts[i] == 0) // current example not in bootstrapped subsample of all examples
+                numOob++;
+        }
+        int[] oobData = new int[numOob];
+        int next = 0;
+        for(int i=0; i<n; i++){
+            if(inBagCounts[i] == 0)
+                oobData[next++] = i; // add current row to OOB rows for later calculation of OOB error
         }
         return oobData;
     }
 
-    // Calculates the out of bag score for a single decision tree
-    private double calcOobScore(ArrayList<Example> oobData, DecisionTree tree){
+    // Calculates the out of bag score for a single decision tree from its predictions for its OOB rows of d
+    private double calcOobScore(BitDataset d, int[] oobRows, boolean[] oobPredictions){
         double numIncorrect = 0;
-        int n = oobData.size();
+        int n = oobRows.length;
         for(int i=0; i<n; i++){
-            Example currEx = oobData.get(i);
-            boolean pred = tree.classify(currEx); 
-            boolean actual = currEx.getLabel();
+            boolean pred = oobPredictions[i];
+            boolean actual = d.getLabel(oobRows[i]);
 
             if(pred != actual){ // DecisionTree incorrectly classifies the OOB example 
                 numIncorrect+=1.0;
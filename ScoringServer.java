@@ -0,0 +1,523 @@
+/***
+ * Name of File: ScoringServer
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * ScoringServer serves predictions of a trained forest over HTTP (JDK HttpServer). It only reads the CompiledForest,
+ * whose arrays never change after it is built, so any number of requests can be scored at the same time.
+ * Rows of concurrent requests are queued and scored together: one batcher thread collects them for up to maxDelay
+ * (or until maxBatchRows rows are waiting) and scores them with one call to the batch scoring path.
+ * The forest comes from a ModelRegistry, so it can be replaced or rolled back without stopping the server; the rows
+ * of a request are coded with the bins of the version that was current when the request arrived and are scored by
+ * that same version, even when a reload lands while they wait in a batch (the registry only publishes forests that
+ * code features the same way, so the rows of a batch normally share one version anyway).
+ *
+ * POST /predict   JSON body: [[1,0,1,...], ...] or {"rows": [[true,false,true,...], ...]}
+ *                 (numeric features take numbers and categorical features strings, see FeatureBins)
+ *                 returns {"predictions": [true, ...], "voteFractions": [0.73, ...]}
+ *                 binary body (Content-Type: application/octet-stream): one byte (0 or 1, or the code of a numeric or
+ *                 categorical feature) per feature, row after row
+ *                 returns one byte (0 or 1) per row
+ * GET  /metrics   request, row and batch counts, throughput, p50/p99/p99.9/max request latency and batch scoring
+ *                 latency as JSON (batch scoring is also published over JMX as
+ *                 RandomForest:type=ForestMetrics,name="ScoringServer-<port>" while the server runs)
+ * GET  /model     current model version and the versions kept for rollback
+ * POST /model/reload     loads the model file again (after it was retrained) and publishes it
+ * POST /model/rollback   goes back to the previous version
+ *
+ * Nothing is authenticated and the /model endpoints replace the live model, so the server only listens on the
+ * loopback interface unless -bind names another address (0.0.0.0 for all)
+ *
+ * Usage: java ScoringServer -model file [-port 8080] [-bind address] [-threads n] [-maxBatch rows] [-maxDelayMicros n] [-keep n]
+ */
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ScoringServer {
+
+    static final long SCORE_TIMEOUT_MS = 30000; // longest a request waits for its batch to be scored
+    static final long STOP_WAIT_MS = 1000; // longest stop() waits for the batch being scored to finish
+
+    // Rows of one request waiting to be scored
+    private static class Request {
+        final BitDataset rows;
+        final ModelRegistry.Version version; // model the rows were coded for, which also scores them
+        final CompletableFuture<double[]> votes = new CompletableFuture<double[]>(); // positive vote fraction of each row
+
+        Request(BitDataset r, ModelRegistry.Version v) {
+            rows = r;
+            version = v;
+        }
+    }
+
+    private final ModelRegistry models;
+    private final int numFeatures;
+    private String modelFile; // model file reloaded by /model/reload, null to disable it
+    private final int maxBatchRows; // a batch is scored as soon as this many rows are waiting
+    private final long maxDelayNanos; // longest time the first request of a batch waits for others to join it
+
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+    private final Thread batcher;
+    private volatile boolean running = true;
+    private HttpServer server;
+    private ExecutorService handlers;
+
+    // counters
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong numRequests = new AtomicLong();
+    private final AtomicLong numRows = new AtomicLong();
+    private final AtomicLong numBatches = new AtomicLong();
+    private final AtomicLong numErrors = new AtomicLong();
+    private final LatencyHistogram latencies = new LatencyHistogram(); // request latencies since the server was created
+    private final ForestMetrics scoring = new ForestMetrics(); // time spent in the forest per batch, registered by start()
+
+    // Constructor, starts the batcher thread. A model must already be published in registry
+    public ScoringServer(ModelRegistry registry, int maxBatch, long maxDelayMicros) {
+        if (maxBatch < 1 || maxDelayMicros < 0)
+            throw new IllegalArgumentException("maxBatch must be positive and maxDelayMicros not negative");
+        models = registry;
+        numFeatures = registry.getNumFeatures();
+        maxBatchRows = maxBatch;
+        maxDelayNanos = maxDelayMicros * 1000;
+        batcher = new Thread(this::batchLoop, "scoring-batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    // Starts serving HTTP requests on port of the loopback interface, handled by a pool of threads
+    public void start(int port, int threads) throws IOException {
+        start(InetAddress.getLoopbackAddress(), port, threads);
+    }
+
+    // Starts serving HTTP requests on port of the bind address, handled by a pool of threads
+    // (the build targets Java 17, which has no virtual threads; on 21+ Executors.newVirtualThreadPerTaskExecutor() fits here)
+    public void start(InetAddress bind, int port, int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(bind, port), 0);
+        handlers = Executors.newFixedThreadPool(threads);
+        server.setExecutor(handlers);
+        server.createContext("/predict", this::handlePredict);
+        server.createContext("/metrics", this::handleMetrics);
+        server.createContext("/model", this::handleModel);
+        server.start();
+        scoring.registerAs("ScoringServer-" + getPort()); // one MBean per server, even with several in one JVM
+    }
+
+    // Returns the port the server listens on
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // Stops the HTTP server and the batcher, requests still waiting fail
+    public void stop() {
+        if (server != null){
+            server.stop(0);
+            handlers.shutdown();
+            scoring.unregister();
+        }
+        running = false;
+        batcher.interrupt();
+        try {
+            batcher.join(STOP_WAIT_MS); // the batch it holds is scored or failed before it exits
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Request r;
+        while ((r = queue.poll()) != null)
+            r.votes.completeExceptionally(new IllegalStateException("scoring server stopped"));
+    }
+
+    // Sets the model file that POST /model/reload loads
+    public void setModelFile(String file) {
+        modelFile = file;
+    }
+
+    // Returns the fraction of trees voting positive for every row of rows, scored together with any other rows
+    // submitted at about the same time. Safe to call from any number of threads
+    public double[] score(BitDataset rows) throws InterruptedException {
+        return score(rows, models.current());
+    }
+
+    // Scores rows (coded with the bins of version) with version
+    private double[] score(BitDataset rows, ModelRegistry.Version version) throws InterruptedException {
+        if (rows.getNumFeatures() != numFeatures)
+            throw new IllegalArgumentException("rows have " + rows.getNumFeatures() + " features but the forest expects " + numFeatures);
+        if (!FeatureBins.sameCoding(rows.getBins(), version.getForest().getBins()))
+            throw new IllegalArgumentException("rows are not coded with the bins of the forest");
+        if (!running)
+            throw new IllegalStateException("scoring server stopped");
+        Request r = new Request(rows, version);
+        queue.add(r);
+        if (!running && queue.remove(r)) // stop() drained the queue before r got into it
+            r.votes.completeExceptionally(new IllegalStateException("scoring server stopped"));
+        try {
+            return r.votes.get(SCORE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("scoring failed", e.getCause());
+        }
+        catch (TimeoutException e) {
+            queue.remove(r);
+            throw new IllegalStateException("scoring took longer than " + SCORE_TIMEOUT_MS + " ms");
+        }
+    }
+
+    // Collects waiting requests into batches and scores them until the server stops
+    private void batchLoop() {
+        ArrayList<Request> batch = new ArrayList<Request>();
+        while (running){
+            try {
+                Request first = queue.take();
+                batch.add(first);
+                int rows = first.rows.getNumRows();
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (rows < maxBatchRows){
+                    Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                    rows += next.rows.getNumRows();
+                }
+                scoreBatch(batch);
+            }
+            catch (InterruptedException e) {
+                for (Request r : batch)
+                    r.votes.completeExceptionally(new IllegalStateException("scoring server stopped"));
+            }
+            batch.clear();
+        }
+    }
+
+    // Scores a batch with one pass of the forest per model version in it (normally one) and hands every request its votes
+    private void scoreBatch(List<Request> batch) {
+        if (allOneVersion(batch)){
+            scoreVersion(batch);
+            return;
+        }
+        LinkedHashMap<ModelRegistry.Version, List<Request>> byVersion = new LinkedHashMap<ModelRegistry.Version, List<Request>>();
+        for (Request r : batch)
+            byVersion.computeIfAbsent(r.version, v -> new ArrayList<Request>()).add(r);
+        for (List<Request> requests : byVersion.values())
+            scoreVersion(requests);
+    }
+
+    // Returns whether every request of batch has the same version
+    private static boolean allOneVersion(List<Request> batch) {
+        for (Request r : batch){
+            if (r.version != batch.get(0).version)
+                return false;
+        }
+        return true;
+    }
+
+    // Scores requests that all have the same version with one pass of its forest
+    private void scoreVersion(List<Request> batch) {
+        try {
+            BitDataset rows;
+            if (batch.size() == 1){
+                rows = batch.get(0).rows;
+            }
+            else{
+                ArrayList<BitDataset> parts = new ArrayList<BitDataset>();
+                for (Request r : batch)
+                    parts.add(r.rows);
+                rows = BitDataset.concat(parts, numFeatures);
+            }
+            RandomForest forest = batch.get(0).version.getForest();
+            long start = System.nanoTime();
+            int[] votes = forest.countVotes(rows);
+            scoring.batchScored(rows.getNumRows(), System.nanoTime() - start);
+            double numTrees = forest.getNumTrees();
+            int from = 0;
+            for (Request r : batch){
+                double[] fractions = new double[r.rows.getNumRows()];
+                for (int row=0; row<fractions.length; row++)
+                    fractions[row] = votes[from + row] / numTrees;
+                r.votes.complete(fractions);
+                from += fractions.length;
+            }
+            numBatches.incrementAndGet();
+        }
+        catch (RuntimeException e) {
+            for (Request r : batch)
+                r.votes.completeExceptionally(e);
+        }
+    }
+
+    // POST /predict
+    private void handlePredict(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (!exchange.getRequestMethod().equals("POST")){
+                sendError(exchange, 405, "use POST");
+                return;
+            }
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            String type = exchange.getRequestHeaders().getFirst("Content-Type");
+            boolean binary = type != null && type.startsWith("application/octet-stream");
+
+            ModelRegistry.Version version = models.current(); // rows are coded for and scored by this version
+            BitDataset rows;
+            try {
+                rows = binary ? parseBinary(body, version) : parseJson(new String(body, StandardCharsets.UTF_8), version);
+            }
+            catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+                return;
+            }
+
+            double[] votes = score(rows, version);
+            if (binary){
+                byte[] result = new byte[votes.length];
+                for (int row=0; row<votes.length; row++)
+                    result[row] = (byte) (votes[row] >= 0.5 ? 1 : 0); // ties count as positive
+                send(exchange, 200, "application/octet-stream", result);
+            }
+            else{
+                ArrayList<Object> predictions = new ArrayList<Object>();
+                ArrayList<Object> fractions = new ArrayList<Object>();
+                for (double v : votes){
+                    predictions.add(v >= 0.5);
+                    fractions.add(v);
+                }
+                Map<String, Object> result = new LinkedHashMap<String, Object>();
+                result.put("predictions", predictions);
+                result.put("voteFractions", fractions);
+                send(exchange, 200, "application/json", BatchJob.toJson(result).getBytes(StandardCharsets.UTF_8));
+            }
+            numRequests.incrementAndGet();
+            numRows.addAndGet(votes.length);
+            latencies.record(System.nanoTime() - start);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendError(exchange, 503, "scoring server stopped");
+        }
+        catch (RuntimeException e) {
+            sendError(exchange, 500, String.valueOf(e.getMessage()));
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    // GET /metrics
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            send(exchange, 200, "application/json", BatchJob.toJson(getMetrics()).getBytes(StandardCharsets.UTF_8));
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    // GET /model, POST /model/reload, POST /model/rollback
+    private void handleModel(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            boolean post = exchange.getRequestMethod().equals("POST");
+            if (path.equals("/model/reload") && post){
+                if (modelFile == null){
+                    sendError(exchange, 409, "no model file to reload");
+                    return;
+                }
+                models.load(modelFile);
+            }
+            else if (path.equals("/model/rollback") && post){
+                models.rollback();
+            }
+            else if (!path.equals("/model") || post){
+                sendError(exchange, 404, "unknown model request " + exchange.getRequestMethod() + " " + path);
+                return;
+            }
+            send(exchange, 200, "application/json", BatchJob.toJson(getModelInfo()).getBytes(StandardCharsets.UTF_8));
+        }
+        catch (IOException | RuntimeException e) {
+            sendError(exchange, 409, String.valueOf(e.getMessage()));
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    // Returns the current model version and the versions kept for rollback
+    public Map<String, Object> getModelInfo() {
+        Map<String, Object> info = new LinkedHashMap<String, Object>();
+        info.put("current", versionInfo(models.current()));
+        ArrayList<Object> previous = new ArrayList<Object>();
+        for (ModelRegistry.Version v : models.getPreviousVersions())
+            previous.add(versionInfo(v));
+        info.put("previous", previous);
+        return info;
+    }
+
+    private static Map<String, Object> versionInfo(ModelRegistry.Version v) {
+        Map<String, Object> info = new LinkedHashMap<String, Object>();
+        info.put("version", v.getNumber());
+        info.put("source", v.source);
+        info.put("trees", v.getForest().getNumTrees());
+        info.put("publishedMillis", v.publishedMillis);
+        return info;
+    }
+
+    // Returns the counters, throughput and latency percentiles since the server was created
+    public Map<String, Object> getMetrics() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long requests = numRequests.get();
+        long rows = numRows.get();
+        long batches = numBatches.get();
+
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("requests", requests);
+        metrics.put("rows", rows);
+        metrics.put("batches", batches);
+        metrics.put("errors", numErrors.get());
+        metrics.put("meanBatchRows", batches == 0 ? 0.0 : rows / (double) batches);
+        metrics.put("requestsPerSec", requests / seconds);
+        metrics.put("rowsPerSec", rows / seconds);
+        metrics.put("latencyP50Ms", percentile(0.50) / 1e6);
+        metrics.put("latencyP99Ms", percentile(0.99) / 1e6);
+        metrics.put("latencyP999Ms", percentile(0.999) / 1e6);
+        metrics.put("latencyMaxMs", latencies.getCount() == 0 ? Double.NaN : latencies.getMax() / 1e6);
+        metrics.put("batchScoreP50Us", scoring.getScoreBatchP50Micros());
+        metrics.put("batchScoreP99Us", scoring.getScoreBatchP99Micros());
+        metrics.put("uptimeSec", seconds);
+        return metrics;
+    }
+
+    // Request latency percentile in nanoseconds, NaN before the first request
+    private double percentile(double p) {
+        return latencies.getCount() == 0 ? Double.NaN : latencies.getValueAtPercentile(p);
+    }
+
+    // Reads rows from a JSON array of arrays, or an object whose "rows" field is one
+    // A boolean feature value is true for true or a non-zero number; numeric and categorical features are coded with
+    // the bins of the forest of version
+    BitDataset parseJson(String text, ModelRegistry.Version version) {
+        Object json = BatchJob.parseJson(text);
+        if (json instanceof Map)
+            json = ((Map<?, ?>) json).get("rows");
+        if (!(json instanceof List))
+            throw new IllegalArgumentException("expected an array of rows or an object with a \"rows\" array");
+        List<?> list = (List<?>) json;
+        FeatureBins bins = version.getForest().getBins();
+        BitDataset rows = new BitDataset(list.size(), numFeatures);
+        rows.setBins(bins);
+        for (int row=0; row<list.size(); row++){
+            if (!(list.get(row) instanceof List))
+                throw new IllegalArgumentException("row " + row + " is not an array");
+            List<?> values = (List<?>) list.get(row);
+            if (values.size() != numFeatures)
+                throw new IllegalArgumentException("row " + row + " has " + values.size() + " features but the forest expects " + numFeatures);
+            for (int f=0; f<numFeatures; f++){
+                Object value = values.get(f);
+                if (rows.isCoded(f)){
+                    if (value instanceof Number && bins.getKind(f) == FeatureBins.NUMERIC)
+                        rows.setCode(row, f, bins.encode(f, ((Number) value).doubleValue()));
+                    else if (value instanceof String)
+                        rows.setCode(row, f, bins.encode(f, (String) value));
+                    else if (value instanceof Number)
+                        rows.setCode(row, f, bins.encode(f, category((Number) value)));
+                    else
+                        throw new IllegalArgumentException("row " + row + " feature " + f + " is not a number or a category");
+                }
+                else if (value instanceof Boolean)
+                    rows.setFeatureValue(row, f, (Boolean) value);
+                else if (value instanceof Number)
+                    rows.setFeatureValue(row, f, ((Number) value).doubleValue() != 0);
+                else
+                    throw new IllegalArgumentException("row " + row + " feature " + f + " is not a boolean or a number");
+            }
+        }
+        return rows;
+    }
+
+    // The category a JSON number names: 3 is the category "3" of a text data file, not "3.0"
+    private static String category(Number value) {
+        double d = value.doubleValue();
+        if (d == Math.rint(d) && Math.abs(d) < 1e15)
+            return Long.toString((long) d);
+        return value.toString();
+    }
+
+    // Reads rows of one byte (0 or 1, or the code of a numeric or categorical feature of the forest of version) per feature
+    BitDataset parseBinary(byte[] body, ModelRegistry.Version version) {
+        if (body.length % numFeatures != 0)
+            throw new IllegalArgumentException("body length " + body.length + " is not a multiple of the " + numFeatures + " features");
+        BitDataset rows = new BitDataset(body.length / numFeatures, numFeatures);
+        rows.setBins(version.getForest().getBins());
+        for (int i=0; i<body.length; i++){
+            if (rows.isCoded(i % numFeatures))
+                rows.setCode(i / numFeatures, i % numFeatures, body[i] & 0xFF);
+            else if (body[i] != 0)
+                rows.setFeatureValue(i / numFeatures, i % numFeatures, true);
+        }
+        return rows;
+    }
+
+    private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        numErrors.incrementAndGet();
+        Map<String, Object> error = new LinkedHashMap<String, Object>();
+        error.put("error", message);
+        send(exchange, status, "application/json", BatchJob.toJson(error).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String type, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()){
+            out.write(body);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String modelFile = null;
+        int port = 8080;
+        InetAddress bind = InetAddress.getLoopbackAddress();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int maxBatch = CompiledForest.BATCH_ROWS;
+        long maxDelayMicros = 200;
+        int keep = 3;
+
+        try {
+            for (int i=0; i<args.length; i+=2){
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("missing value for " + args[i]);
+                String value = args[i + 1];
+                switch (args[i]){
+                    case "-model": modelFile = value; break;
+                    case "-port": port = Integer.parseInt(value); break;
+                    case "-bind": bind = InetAddress.getByName(value); break;
+                    case "-threads": threads = Integer.parseInt(value); break;
+                    case "-maxBatch": maxBatch = Integer.parseInt(value); break;
+                    case "-maxDelayMicros": maxDelayMicros = Long.parseLong(value); break;
+                    case "-keep": keep = Integer.parseInt(value); break;
+                    default: throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            }
+            if (modelFile == null)
+                throw new IllegalArgumentException("-model is required");
+        }
+        catch (IllegalArgumentException | UnknownHostException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: java ScoringServer -model file [-port 8080] [-bind address] [-threads n] [-maxBatch rows] [-maxDelayMicros n] [-keep n]");
+            System.exit(2);
+        }
+
+        ModelRegistry registry = new ModelRegistry(keep);
+        ModelRegistry.Version version = registry.load(modelFile);
+        ScoringServer scoring = new ScoringServer(registry, maxBatch, maxDelayMicros);
+        scoring.setModelFile(modelFile);
+        scoring.start(bind, port, threads);
+        System.out.println("Serving " + modelFile + " (" + version + ") on " + bind.getHostAddress() + ":" + scoring.getPort());
+    }
+}
@@ -9,72 +9,29 @@
 import java.util.*;
 
 public class TreeNode {
-    TreeNode parent; //parent of this node
 	TreeNode trueChild;//the examples which are true on the splitFeature
 	TreeNode falseChild;//the examples which are true on the splitFeature
 	
-	ArrayList<Example> pos; // the positive examples at this node
-	ArrayList<Example> neg; //the negative examples at this node
+	long[] rows; // bitset of the rows of the training BitDataset that reach this node (only set while the tree is trained)
+	int numPos; // the number of positive examples at this node (kept after training for leaf class frequencies)
+	int numNeg; // the number of negative examples at this node
 	boolean decision;
 	int depth; 
 	
-	private boolean[] featuresUsed; // the features already used prior to this node 
 	private int splitFeature;// the feature that this node will split examples on
+	private int splitThreshold = 0; // a row goes to the true child if its code of the split feature is above this (0 for boolean features)
+	private boolean splitOnCategory = false; // if true, a row goes to the true child if its code equals splitThreshold instead
 	boolean isLeaf = false; //indicates whether the node is a leaf (set to true during pruning)
 	
-	static Random rand = new Random();
-	
-	// Constructor for TreeNode object 
-	public TreeNode(TreeNode par, ArrayList<Example> p, ArrayList<Example> n, int numTotalFeat){
-		parent = par;
-		resetFeatures(numTotalFeat); 
-
-		pos = p;
-		neg = n;
-		if(pos.size()==0 || neg.size() ==0)
+	// Constructor for TreeNode object, d is the depth of the node (0 for the root)
+	public TreeNode(long[] r, int p, int n, int d){
+		rows = r;
+		numPos = p;
+		numNeg = n;
+		if(numPos==0 || numNeg ==0)
 			isLeaf = true;
 		splitFeature = -1;
-		setDepth();
-	}
-
-	// randomly chooses indices of features to be used by a given node for split feature selection
-	public void chooseFeatures(int numTotalFeat, int numFeatUse) {
-		ArrayList<Integer> randomFeatures = new ArrayList<Integer>();
-        
-        for(int j = 0; j < numFeatUse; j++){
-            int randFeature = rand.nextInt(numTotalFeat);
-            while(randomFeatures.contains(randFeature)){ // feature cannot already be selected 
-                randFeature = rand.nextInt(numTotalFeat); // choose feature that hasn't been selected already for this node 
-            }
-            randomFeatures.add(randFeature);
-        }
-		
-		for(int i=0; i<randomFeatures.size(); i++){
-			int index = randomFeatures.get(i);
-			featuresUsed[index] = false;
-		}
-	}
-	
-		
-	/**
-	 * Reset the featuresUsed array to all true values 
-	 */
-	private void resetFeatures(int features){
-		featuresUsed = new boolean[features];
-		
-		for(int i =0; i<featuresUsed.length; i++){
-			featuresUsed[i]= true;
-		}
-	}
-
-	// Initializes depth of the node based on whether it is the root or its parents depth 
-	private void setDepth(){
-		if(parent == null){ // node is root 
-			depth = 0;
-		}
-		else { // node is not root 
-			depth = parent.depth + 1;
-		}
+		depth = d;
 	}
 
 	// Getter method for depth 
@@ -82,23 +39,41 @@ public class TreeNode {
 		return this.depth;
 	}
 	/**
-	 * returns whether or not the input feature i can be used in this tree
-	 * @param i - the feature
-	 * @return - true if i cannot be used for split feature selection and false otherwise
+	 * Set feature f to be the one to split this node on 
+	 * @param f - feature
 	 */
-	public boolean featureUsed(int i){
-		return featuresUsed[i];
+	public void setSplitFeature(int f){
+		splitFeature = f;
 	}
 	
 	/**
-	 * Set feature f to be the one to split this node on 
+	 * Set feature f to be the one to split this node on, for a numeric or categorical feature (see FeatureBins)
 	 * @param f - feature
+	 * @param threshold - rows whose code of f is above threshold go to the true child (or equal to it, for a category)
+	 * @param category - whether threshold is a category of a categorical feature
 	 */
-	public void setSplitFeature(int f){
+	public void setSplit(int f, int threshold, boolean category){
 		splitFeature = f;
-		featuresUsed[f] = true;
+		splitThreshold = threshold;
+		splitOnCategory = category;
 	}
-	
+
+	// returns the threshold (or category) of the split, 0 for a boolean split
+	public int getSplitThreshold(){
+		return splitThreshold;
+	}
+
+	// returns whether the split tests for one category of a categorical feature
+	public boolean isCategorySplit(){
+		return splitOnCategory;
+	}
+
+	// returns whether a row whose code of the split feature is code goes to the true child
+	// (the code of a boolean feature is 1 for true and 0 for false)
+	public boolean goesTrue(int code){
+		return splitOnCategory ? code == splitThreshold : code > splitThreshold;
+	}
+
 	/** return the feature this node is split with 
 	 * @return - index of split feature
 	 */
@@ -107,7 +82,7 @@ public class TreeNode {
 	}
 	
 	public String toString(){
-		return splitFeature + " \t " + pos.size() + " \t " + neg.size() + "\t " + parent.splitFeature;
+		return splitFeature + " \t " + numPos + " \t " + numNeg + "\t " + depth;
 	}
 
 }
@@ -0,0 +1,66 @@
+/***
+ * Name of File: TreeStats
+ * Creators: Alivia Kliesen, Cheko Mkocheko and Leili Manafi
+ *
+ * TreeStats holds what it took to train one tree (times in nanoseconds) and the shape of the result; it is handed to
+ * every ForestListener once the tree is added to its forest
+ */
+
+public class TreeStats {
+    final int treeIndex; // index of the tree in its forest (-1 for a tree trained on its own)
+    final long trainNanos; // building the tree
+    final long bootstrapNanos; // drawing its bootstrap sample (0 for a tree trained on its own)
+    final long oobNanos; // classifying its out-of-bag rows (0 for a tree trained on its own)
+    final int numNodes;
+    final int numLeaves;
+    final int depth; // depth of the deepest leaf (0 for a tree that is a single leaf)
+    final long splitEvaluations; // candidate splits scored while building the tree
+
+    // Constructor
+    public TreeStats(int index, long train, long boot, long oob, int nodes, int leaves, int d, long splits) {
+        treeIndex = index;
+        trainNanos = train;
+        bootstrapNanos = boot;
+        oobNanos = oob;
+        numNodes = nodes;
+        numLeaves = leaves;
+        depth = d;
+        splitEvaluations = splits;
+    }
+
+    public int getTreeIndex() {
+        return treeIndex;
+    }
+
+    public long getTrainNanos() {
+        return trainNanos;
+    }
+
+    public long getBootstrapNanos() {
+        return bootstrapNanos;
+    }
+
+    public long getOobNanos() {
+        return oobNanos;
+    }
+
+    public int getNumNodes() {
+        return numNodes;
+    }
+
+    public int getNumLeaves() {
+        return numLeaves;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getSplitEvaluations() {
+        return splitEvaluations;
+    }
+
+    public String toString() {
+        return "tree " + treeIndex + ": " + trainNanos / 1e6 + " ms, " + numNodes + " nodes, " + numLeaves + " leaves, depth " + depth + ", " + splitEvaluations + " split evaluations";
+    }
+}